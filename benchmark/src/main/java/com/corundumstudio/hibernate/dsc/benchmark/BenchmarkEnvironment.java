@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.hibernate.Session;
+import org.hibernate.cache.infinispan.InfinispanRegionFactory;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.spi.QueryParameters;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.service.ServiceRegistryBuilder;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.Type;
+
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheFactory;
+import com.corundumstudio.hibernate.dsc.QueryCacheEntityListener;
+
+/**
+ * Local Infinispan backed session factory shared by benchmarks.
+ * Regions are configured with the same infinispan.xml as the test suite.
+ *
+ */
+class BenchmarkEnvironment {
+
+    static final String QUERY = "SELECT id FROM BenchmarkEntity WHERE phone = :phone";
+    static final Type[] RETURN_TYPES = new Type[] {LongType.INSTANCE};
+
+    private final SessionFactoryImplementor sessionFactory;
+    private final Session session;
+
+    BenchmarkEnvironment(String dbName, QueryCacheEntityListener listener) {
+        this(dbName, listener, new Properties());
+    }
+
+    BenchmarkEnvironment(String dbName, QueryCacheEntityListener listener, Properties cacheSettings) {
+        Properties props = new Properties();
+        props.put(Environment.DRIVER, "org.h2.Driver");
+        props.put(Environment.URL, "jdbc:h2:mem:" + dbName + ";DB_CLOSE_DELAY=-1;MVCC=TRUE");
+        props.put(Environment.USER, "sa");
+        props.put(Environment.PASS, "");
+
+        Configuration cfg = new Configuration();
+        cfg.setProperty(AvailableSettings.HBM2DDL_AUTO, "create");
+        cfg.setProperty(AvailableSettings.CACHE_REGION_FACTORY, InfinispanRegionFactory.class.getName());
+        cfg.setProperty(InfinispanRegionFactory.INFINISPAN_CONFIG_RESOURCE_PROP, "infinispan.xml");
+        cfg.setProperty(AvailableSettings.QUERY_CACHE_FACTORY, DynamicQueryCacheFactory.class.getName());
+        cfg.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "true");
+        cfg.setProperty(Environment.USE_QUERY_CACHE, "true");
+        cfg.addProperties(cacheSettings);
+        cfg.addAnnotatedClass(BenchmarkEntity.class);
+        cfg.buildMappings();
+
+        ServiceRegistry serviceRegistry = new ServiceRegistryBuilder().applySettings(props).buildServiceRegistry();
+        sessionFactory = (SessionFactoryImplementor) cfg.buildSessionFactory(serviceRegistry);
+
+        if (listener != null) {
+            EventListenerRegistry registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+            registry.getEventListenerGroup(EventType.POST_UPDATE).appendListener(listener);
+            registry.getEventListenerGroup(EventType.POST_INSERT).appendListener(listener);
+            registry.getEventListenerGroup(EventType.POST_DELETE).appendListener(listener);
+        }
+
+        session = sessionFactory.openSession();
+    }
+
+    SessionFactoryImplementor getSessionFactory() {
+        return sessionFactory;
+    }
+
+    SessionImplementor getSession() {
+        return (SessionImplementor) session;
+    }
+
+    DynamicQueryCache getQueryCache(String regionName) {
+        return (DynamicQueryCache) sessionFactory.getQueryCache(regionName);
+    }
+
+    QueryKey createQueryKey(String phone) {
+        Map<String, TypedValue> namedParams = new HashMap<String, TypedValue>();
+        namedParams.put("phone", new TypedValue(StringType.INSTANCE, phone));
+        return createQueryKey(QUERY, namedParams);
+    }
+
+    QueryKey createQueryKey(String query, Map<String, TypedValue> namedParams) {
+        QueryParameters parameters = new QueryParameters(new Type[0], new Object[0], namedParams, null);
+        return QueryKey.generateQueryKey(query, parameters, Collections.emptySet(), getSession(), null);
+    }
+
+    static List<Object> createResult(int size) {
+        List<Object> result = new ArrayList<Object>(size);
+        for (long i = 0; i < size; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    void close() {
+        session.close();
+        sessionFactory.close();
+    }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks reporting throughput, latency percentiles (sample mode)
+ * and allocation rate (GC profiler). Any JMH command line option overrides the defaults,
+ * e.g. <code>java -jar target/benchmarks.jar ResultMaintenance -p resultSize=100000</code>
+ *
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+        }
+        if (commandLine.getBenchModes().isEmpty()) {
+            builder.mode(Mode.Throughput).mode(Mode.SampleTime);
+        }
+        if (!commandLine.getTimeUnit().hasValue()) {
+            builder.timeUnit(TimeUnit.MICROSECONDS);
+        }
+        if (!commandLine.getWarmupIterations().hasValue()) {
+            builder.warmupIterations(5);
+        }
+        if (!commandLine.getMeasurementIterations().hasValue()) {
+            builder.measurementIterations(5);
+        }
+        if (!commandLine.getForkCount().hasValue()) {
+            builder.forks(1);
+        }
+        Options options = builder.addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.QueryCacheEntityListener;
+
+/**
+ * Full QueryCacheEntityListener.onPostInsert/onPostDelete path:
+ * callback invocation, locking and result maintenance of a cached query.
+ *
+ */
+@State(Scope.Benchmark)
+public class EntityListenerBenchmark {
+
+    private static final String REGION = "EntityListenerBenchmark";
+    private static final String PHONE = "12345";
+
+    @Param({"false", "true"})
+    public boolean concurrentAccess;
+
+    @Param({"100"})
+    public int resultSize;
+
+    private BenchmarkEnvironment environment;
+    private EntityPersister persister;
+    private BenchmarkEntity entity;
+    private QueryCacheEntityListener listener;
+
+    @Setup
+    public void setup() {
+        listener = new QueryCacheEntityListener();
+        listener.register(BenchmarkEntity.class, REGION, new CacheCallback<BenchmarkEntity>(concurrentAccess) {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, BenchmarkEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+
+        environment = new BenchmarkEnvironment("EntityListenerBenchmark", listener);
+        environment.getQueryCache(REGION).put(environment.createQueryKey(PHONE), BenchmarkEnvironment.RETURN_TYPES,
+                        BenchmarkEnvironment.createResult(resultSize), false, environment.getSession());
+        persister = environment.getSessionFactory().getEntityPersister(BenchmarkEntity.class.getName());
+
+        entity = new BenchmarkEntity();
+        entity.setId(Long.valueOf(resultSize));
+        entity.setPhone(PHONE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public void postInsertThenPostDelete() {
+        EventSource session = (EventSource) environment.getSession();
+        listener.onPostInsert(new PostInsertEvent(entity, entity.getId(), null, persister, session));
+        listener.onPostDelete(new PostDeleteEvent(entity, entity.getId(), null, persister, session));
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.QueryCacheEntityListener;
+
+/**
+ * Listener updates of a two parameter query with <code>concurrentAccess</code> enabled,
+ * performed by 64 threads over <code>keys</code> cached results.
+ * All the results share the same "phone" parameter value.
+ * Each thread sends events through its own session, since session isn't thread-safe.
+ *
+ */
+@State(Scope.Benchmark)
+@Threads(64)
+public class LockContentionBenchmark {
+
+    private static final String REGION = "LockContentionBenchmark";
+    private static final String QUERY = "SELECT id FROM BenchmarkEntity WHERE phone = :phone AND MOD(id, :keys) = :key";
+    private static final String PHONE = "12345";
+
+    @Param({"1", "64", "1024"})
+    public int keys;
+
+    @Param({"10"})
+    public int resultSize;
+
+    private final AtomicLong idGenerator = new AtomicLong();
+
+    private BenchmarkEnvironment environment;
+    private EntityPersister persister;
+    private QueryCacheEntityListener listener;
+
+    @Setup
+    public void setup() {
+        listener = new QueryCacheEntityListener();
+        listener.register(BenchmarkEntity.class, REGION, new CacheCallback<BenchmarkEntity>(true) {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, BenchmarkEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.setParameter("key", object.getId() % keys);
+                command.addResult(object.getId());
+            }
+        });
+
+        environment = new BenchmarkEnvironment("LockContentionBenchmark", listener);
+        for (long key = 0; key < keys; key++) {
+            Map<String, TypedValue> namedParams = new HashMap<String, TypedValue>();
+            namedParams.put("phone", new TypedValue(StringType.INSTANCE, PHONE));
+            namedParams.put("key", new TypedValue(LongType.INSTANCE, key));
+            environment.getQueryCache(REGION).put(environment.createQueryKey(QUERY, namedParams),
+                            BenchmarkEnvironment.RETURN_TYPES, BenchmarkEnvironment.createResult(resultSize),
+                            false, environment.getSession());
+        }
+        persister = environment.getSessionFactory().getEntityPersister(BenchmarkEntity.class.getName());
+        idGenerator.set(resultSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        BenchmarkEntity entity;
+        Session session;
+
+        @Setup
+        public void setup(LockContentionBenchmark benchmark) {
+            entity = new BenchmarkEntity();
+            entity.setId(benchmark.idGenerator.getAndIncrement());
+            entity.setPhone(PHONE);
+            session = benchmark.environment.getSessionFactory().openSession();
+        }
+
+        @TearDown
+        public void tearDown() {
+            session.close();
+        }
+
+    }
+
+    @Benchmark
+    public void postInsertThenPostDelete(ThreadState state) {
+        BenchmarkEntity entity = state.entity;
+        EventSource session = (EventSource) state.session;
+        listener.onPostInsert(new PostInsertEvent(entity, entity.getId(), null, persister, session));
+        listener.onPostDelete(new PostDeleteEvent(entity, entity.getId(), null, persister, session));
+    }
+
+}
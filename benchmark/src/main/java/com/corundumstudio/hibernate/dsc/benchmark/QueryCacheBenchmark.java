@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.hibernate.cache.spi.QueryKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+
+/**
+ * DynamicQueryCache.get (cache hit) in each read mode and DynamicQueryCache.put
+ *
+ */
+@State(Scope.Benchmark)
+public class QueryCacheBenchmark {
+
+    private static final String REGION = "QueryCacheBenchmark";
+
+    @Param({"10", "1000"})
+    public int resultSize;
+
+    @Param({"touch", "sampled", "none"})
+    public String readMode;
+
+    private BenchmarkEnvironment environment;
+    private DynamicQueryCache queryCache;
+    private QueryKey queryKey;
+    private List<Object> result;
+    private final Set<String> spaces = Collections.emptySet();
+
+    @Setup
+    public void setup() {
+        Properties cacheSettings = new Properties();
+        cacheSettings.setProperty(DynamicQueryCacheSettings.PREFIX + DynamicQueryCacheSettings.READ_MODE, readMode);
+        environment = new BenchmarkEnvironment("QueryCacheBenchmark", null, cacheSettings);
+        queryCache = environment.getQueryCache(REGION);
+        queryKey = environment.createQueryKey("12345");
+        result = BenchmarkEnvironment.createResult(resultSize);
+        queryCache.put(queryKey, BenchmarkEnvironment.RETURN_TYPES, result, false, environment.getSession());
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public List get() {
+        return queryCache.get(queryKey, BenchmarkEnvironment.RETURN_TYPES, false, spaces, environment.getSession());
+    }
+
+    @Benchmark
+    public boolean put() {
+        return queryCache.put(queryKey, BenchmarkEnvironment.RETURN_TYPES, result, false, environment.getSession());
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import java.util.Collections;
+import java.util.Properties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.ParamKey;
+
+/**
+ * DynamicQueryCache.addResult/removeResult against cached result lists of different sizes.
+ * Every invocation adds an id and removes it again, so the list size stays constant.
+ *
+ */
+@State(Scope.Benchmark)
+public class ResultMaintenanceBenchmark {
+
+    private static final String REGION = "ResultMaintenanceBenchmark";
+    private static final String PHONE = "12345";
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int resultSize;
+
+    @Param({"false", "true"})
+    public boolean deltaMaintenance;
+
+    @Param({"false", "true"})
+    public boolean indexedResults;
+
+    @Param({"false", "true"})
+    public boolean primitiveResults;
+
+    private BenchmarkEnvironment environment;
+    private DynamicQueryCache queryCache;
+    private ParamKey params;
+    private Long addedId;
+    private Long absentId;
+
+    @Setup
+    public void setup() {
+        Properties cacheSettings = new Properties();
+        cacheSettings.setProperty(DynamicQueryCacheSettings.PREFIX + DynamicQueryCacheSettings.DELTA_MAINTENANCE,
+                                    String.valueOf(deltaMaintenance));
+        cacheSettings.setProperty(DynamicQueryCacheSettings.PREFIX + DynamicQueryCacheSettings.INDEXED_RESULTS,
+                                    String.valueOf(indexedResults));
+        cacheSettings.setProperty(DynamicQueryCacheSettings.PREFIX + DynamicQueryCacheSettings.PRIMITIVE_RESULTS,
+                                    String.valueOf(primitiveResults));
+        environment = new BenchmarkEnvironment("ResultMaintenanceBenchmark", null, cacheSettings);
+        queryCache = environment.getQueryCache(REGION);
+        queryCache.put(environment.createQueryKey(PHONE), BenchmarkEnvironment.RETURN_TYPES,
+                        BenchmarkEnvironment.createResult(resultSize), false, environment.getSession());
+        params = ParamKey.valueOf(Collections.<String, Object>singletonMap("phone", PHONE));
+        addedId = Long.valueOf(resultSize);
+        absentId = Long.valueOf(-1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public void addThenRemoveResult() {
+        queryCache.addResult(params, addedId, false, environment.getSession());
+        queryCache.removeResult(params, addedId, environment.getSession());
+    }
+
+    @Benchmark
+    public void removeAbsentResult() {
+        queryCache.removeResult(params, absentId, environment.getSession());
+    }
+
+}
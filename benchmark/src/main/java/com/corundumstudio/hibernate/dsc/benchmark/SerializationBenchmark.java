@@ -0,0 +1,141 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.hibernate.cache.spi.QueryKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.ParamKey;
+
+/**
+ * Serialization of region entries: QueryCacheValue with its ParamKey and cached result list.
+ * Compact externalized entries are compared with default Java serialization of the same data:
+ * QueryKey with return types, parameter arrays and result list stored by StandardQueryCache.
+ * Serialized sizes are printed on setup.
+ *
+ */
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    private static final String REGION = "SerializationBenchmark";
+    private static final String PHONE = "12345";
+
+    @Param({"10", "1000"})
+    public int resultSize;
+
+    @Param({"false", "true"})
+    public boolean primitiveResults;
+
+    private BenchmarkEnvironment environment;
+
+    private Object[] entry;
+    private Object[] defaultEntry;
+    private byte[] entryBytes;
+    private byte[] defaultEntryBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        Properties cacheSettings = new Properties();
+        cacheSettings.setProperty(DynamicQueryCacheSettings.PREFIX + DynamicQueryCacheSettings.PRIMITIVE_RESULTS,
+                                    String.valueOf(primitiveResults));
+        environment = new BenchmarkEnvironment("SerializationBenchmark", null, cacheSettings);
+        DynamicQueryCache queryCache = environment.getQueryCache(REGION);
+        QueryKey queryKey = environment.createQueryKey(PHONE);
+        List<Object> result = BenchmarkEnvironment.createResult(resultSize);
+        queryCache.put(queryKey, BenchmarkEnvironment.RETURN_TYPES, result, false, environment.getSession());
+
+        ParamKey paramKey = ParamKey.valueOf(Collections.<String, Object>singletonMap("phone", PHONE));
+        entry = new Object[] {paramKey, queryCache.getRegion().get(paramKey), queryCache.getRegion().get(queryKey)};
+
+        List<Object> defaultResult = new ArrayList<Object>(result.size() + 1);
+        defaultResult.add(queryCache.getRegion().nextTimestamp());
+        defaultResult.addAll(result);
+        defaultEntry = new Object[] {new Object[] {new String[] {"phone"}, new Object[] {PHONE}},
+                                        new Object[] {queryKey, BenchmarkEnvironment.RETURN_TYPES},
+                                        defaultResult};
+
+        entryBytes = serialize(entry);
+        defaultEntryBytes = serialize(defaultEntry);
+        System.out.println("Serialized entry size, compact: " + entryBytes.length
+                                + " bytes, default: " + defaultEntryBytes.length + " bytes");
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    /**
+     * Each region entry is serialized separately, as replicated or binary stored caches do
+     */
+    private static byte[] serialize(Object[] entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Object object : entry) {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes, int count) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+        Object result = null;
+        for (int i = 0; i < count; i++) {
+            ObjectInputStream in = new ObjectInputStream(stream);
+            result = in.readObject();
+        }
+        return result;
+    }
+
+    @Benchmark
+    public byte[] serializeCompact() throws IOException {
+        return serialize(entry);
+    }
+
+    @Benchmark
+    public byte[] serializeDefault() throws IOException {
+        return serialize(defaultEntry);
+    }
+
+    @Benchmark
+    public Object deserializeCompact() throws IOException, ClassNotFoundException {
+        return deserialize(entryBytes, entry.length);
+    }
+
+    @Benchmark
+    public Object deserializeDefault() throws IOException, ClassNotFoundException {
+        return deserialize(defaultEntryBytes, defaultEntry.length);
+    }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which spreads concurrent updates over several cells,
+ * so writers rarely contend on the same cache line.
+ * Reading sums all the cells, so it is slower than update
+ * and isn't an atomic snapshot.
+ *
+ */
+public class StripedCounter {
+
+    // longs per cache line, to avoid false sharing between cells
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes - amount of cells, rounded up to power of two
+     */
+    public StripedCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes * 2 - 1));
+        this.cells = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    public void add(long value) {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        cells.getAndAdd(((hash ^ (hash >>> 16)) & mask) * PADDING, value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size table of locks. Key is mapped to a lock by its hash code,
+ * so different keys may share the same lock.
+ * Locks for several keys are always acquired in order of their index in the table,
+ * which makes concurrent acquisition of overlapping key sets deadlock free.
+ *
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripes - amount of locks, rounded up to power of two
+     */
+    public StripedLock(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes * 2 - 1));
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    private int indexOf(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & mask;
+    }
+
+    public Lock getLock(Object key) {
+        return stripes[indexOf(key)];
+    }
+
+    /**
+     * @return lock of all the keys, stripes are acquired in ascending order
+     */
+    public Lock getLock(Object... keys) {
+        if (keys.length == 1) {
+            return getLock(keys[0]);
+        }
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = indexOf(keys[i]);
+        }
+        Arrays.sort(indexes);
+        int count = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[count++] = indexes[i];
+            }
+        }
+        if (count == 1) {
+            return stripes[indexes[0]];
+        }
+        Lock[] locks = new Lock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = stripes[indexes[i]];
+        }
+        return new OrderedLock(locks);
+    }
+
+    /**
+     * Set of locks always acquired in the same order
+     */
+    private static class OrderedLock implements Lock {
+
+        private final Lock[] locks;
+
+        OrderedLock(Lock[] locks) {
+            this.locks = locks;
+        }
+
+        @Override
+        public void lock() {
+            for (Lock lock : locks) {
+                lock.lock();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            int acquired = 0;
+            try {
+                for (Lock lock : locks) {
+                    lock.lockInterruptibly();
+                    acquired++;
+                }
+            } finally {
+                if (acquired != locks.length) {
+                    unlock(acquired);
+                }
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            for (int i = 0; i < locks.length; i++) {
+                if (!locks[i].tryLock()) {
+                    unlock(i);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            int acquired = 0;
+            try {
+                for (Lock lock : locks) {
+                    if (!lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        return false;
+                    }
+                    acquired++;
+                }
+                return true;
+            } finally {
+                if (acquired != locks.length) {
+                    unlock(acquired);
+                }
+            }
+        }
+
+        @Override
+        public void unlock() {
+            unlock(locks.length);
+        }
+
+        private void unlock(int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesced changes of aggregate query result
+ *
+ * Not thread safe.
+ *
+ */
+class AggregateChange {
+
+    private final AggregateFunction function;
+    // COUNT and SUM
+    private BigDecimal delta = BigDecimal.ZERO;
+    private boolean removal;
+    // MIN and MAX
+    private Comparable<Object> addedValue;
+    private final List<Comparable<Object>> removedValues = new ArrayList<Comparable<Object>>();
+    // class of cached value, null if unknown
+    private Class<?> resultClass;
+
+    AggregateChange(AggregateFunction function) {
+        this.function = function;
+    }
+
+    AggregateFunction getFunction() {
+        return function;
+    }
+
+    void setResultClass(Class<?> resultClass) {
+        this.resultClass = resultClass;
+    }
+
+    void add(Object value) {
+        switch (function) {
+        case COUNT:
+            delta = delta.add(BigDecimal.ONE);
+            break;
+        case SUM:
+            if (value != null) {
+                delta = delta.add(toDecimal((Number) value));
+            }
+            break;
+        default:
+            if (value != null && (addedValue == null || !isBetter(addedValue, value))) {
+                addedValue = (Comparable<Object>) value;
+            }
+        }
+    }
+
+    void remove(Object value) {
+        removal = true;
+        switch (function) {
+        case COUNT:
+            delta = delta.subtract(BigDecimal.ONE);
+            break;
+        case SUM:
+            if (value != null) {
+                delta = delta.subtract(toDecimal((Number) value));
+            }
+            break;
+        default:
+            if (value != null) {
+                removedValues.add((Comparable<Object>) value);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if <code>value</code> is closer to result than <code>other</code>
+     */
+    private boolean isBetter(Comparable<Object> value, Object other) {
+        int res = value.compareTo(other);
+        return function == AggregateFunction.MIN ? res < 0 : res > 0;
+    }
+
+    /**
+     * @param current - cached value
+     * @return <code>false</code> if result can't be computed without reload
+     */
+    boolean isApplicableTo(Object current) {
+        switch (function) {
+        case COUNT:
+            return true;
+        case SUM:
+            return !removal || !isZero(applyTo(current));
+        default:
+            for (Comparable<Object> value : removedValues) {
+                // removed value may be the only one equal to result
+                if (current == null || !isBetter((Comparable<Object>) current, value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param current - cached value
+     * @return new cached value
+     */
+    Object applyTo(Object current) {
+        switch (function) {
+        case COUNT:
+        case SUM:
+            if (current == null && delta.signum() == 0) {
+                return null;
+            }
+            BigDecimal value = delta;
+            if (current != null) {
+                value = value.add(toDecimal((Number) current));
+            }
+            return convert(value, current);
+        default:
+            if (addedValue == null) {
+                return current;
+            }
+            if (current == null || isBetter(addedValue, current)) {
+                return addedValue;
+            }
+            return current;
+        }
+    }
+
+    private boolean isZero(Object value) {
+        return value != null && toDecimal((Number) value).signum() == 0;
+    }
+
+    private BigDecimal toDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return new BigDecimal(value.doubleValue());
+        }
+        return BigDecimal.valueOf(value.longValue());
+    }
+
+    private Number convert(BigDecimal value, Object current) {
+        Class<?> type = resultClass;
+        if (current != null) {
+            type = current.getClass();
+        }
+        if (type == Long.class) {
+            return value.longValue();
+        }
+        if (type == Integer.class) {
+            return value.intValue();
+        }
+        if (type == Short.class) {
+            return value.shortValue();
+        }
+        if (type == Byte.class) {
+            return value.byteValue();
+        }
+        if (type == Double.class) {
+            return value.doubleValue();
+        }
+        if (type == Float.class) {
+            return value.floatValue();
+        }
+        if (type == BigInteger.class) {
+            return value.toBigInteger();
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Aggregate function of cached single value query result,
+ * see {@link InsertOrDeleteCommand#setAggregate}
+ *
+ */
+public enum AggregateFunction {
+
+    /**
+     * Result is incremented on insert and decremented on delete
+     */
+    COUNT,
+
+    /**
+     * Entity value is added on insert and subtracted on delete,
+     * result is reloaded if it becomes zero, since sum of no rows is <code>null</code>
+     */
+    SUM,
+
+    /**
+     * Result is reloaded when its value is deleted
+     */
+    MIN,
+
+    /**
+     * Result is reloaded when its value is deleted
+     */
+    MAX
+
+}
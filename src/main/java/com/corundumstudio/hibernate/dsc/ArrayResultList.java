@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Default result list, keeps rows in order of their addition.
+ * Removal takes linear time.
+ *
+ */
+class ArrayResultList extends ResultList {
+
+    private static final long serialVersionUID = -7946400366722467353L;
+
+    private List<Object> rows;
+
+    ArrayResultList(Long timestamp, int capacity) {
+        super(timestamp);
+        rows = new ArrayList<Object>(capacity);
+    }
+
+    /**
+     * Used by deserialization
+     */
+    public ArrayResultList() {
+    }
+
+    @Override
+    synchronized boolean addRow(Object row) {
+        return rows.add(row);
+    }
+
+    @Override
+    synchronized boolean removeRow(Object row) {
+        if (!(row instanceof Serializable[])) {
+            return rows.remove(row);
+        }
+        boolean removed = false;
+        for (Iterator<Object> iterator = rows.iterator(); iterator.hasNext();) {
+            Serializable[] object = (Serializable[]) iterator.next();
+            if (Arrays.equals(object, (Serializable[]) row)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    synchronized boolean containsRow(Object row) {
+        if (!(row instanceof Serializable[])) {
+            return rows.contains(row);
+        }
+        for (Object object : rows) {
+            if (Arrays.equals((Serializable[]) object, (Serializable[]) row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    synchronized void clearRows() {
+        rows.clear();
+    }
+
+    @Override
+    synchronized int rowCount() {
+        return rows.size();
+    }
+
+    @Override
+    synchronized Object[] toRowArray() {
+        return rows.toArray();
+    }
+
+    @Override
+    synchronized ResultList copy() {
+        ArrayResultList copy = new ArrayResultList(getTimestamp(), rows.size() + 1);
+        copy.rows.addAll(rows);
+        return copy.copyState(this);
+    }
+
+    @Override
+    public synchronized Object get(int index) {
+        if (index == 0) {
+            return getTimestamp();
+        }
+        return rows.get(index - 1);
+    }
+
+    @Override
+    void writeRows(ObjectOutput out) throws IOException {
+        CompactSerializer.writeVarLong(out, rows.size());
+        for (Object row : rows) {
+            CompactSerializer.writeValue(out, row);
+        }
+    }
+
+    @Override
+    void readRows(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = (int) CompactSerializer.readVarLong(in);
+        rows = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+            rows.add(CompactSerializer.readValue(in));
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies cache updates in background worker threads.
+ * Tasks with the same key are always executed by the same worker
+ * in order of submission, tasks with different keys run in parallel.
+ * Submitting thread blocks while worker queue is full.
+ *
+ */
+class AsyncApplier {
+
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Worker[] workers;
+    // submissions share the lock, shutdown takes it exclusively,
+    // so no task is enqueued after STOP
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+    private boolean shutdown;
+
+    AsyncApplier(int workerCount, int queueCapacity) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount should be positive: " + workerCount);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity should be positive: " + queueCapacity);
+        }
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("dsc-applier-" + i, queueCapacity);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Executes task in caller thread if applier has been shut down,
+     * but only after tasks submitted before
+     */
+    void submit(int key, Runnable task) {
+        int hash = key ^ (key >>> 16);
+        Worker worker = workers[(hash & Integer.MAX_VALUE) % workers.length];
+        boolean stopped;
+        Lock lock = shutdownLock.readLock();
+        lock.lock();
+        try {
+            stopped = shutdown;
+            if (!stopped) {
+                // task mustn't run before queued tasks of the same key
+                putUninterruptibly(worker, task);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (stopped) {
+            await(worker);
+        }
+        task.run();
+    }
+
+    /**
+     * Waits until all tasks submitted before the call are executed
+     *
+     * @return <code>false</code> if the waiting time elapsed
+     */
+    boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(workers.length);
+        Runnable barrier = new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+        boolean stopped;
+        Lock lock = shutdownLock.readLock();
+        lock.lock();
+        try {
+            stopped = shutdown;
+            if (!stopped) {
+                for (Worker worker : workers) {
+                    worker.queue.put(barrier);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!stopped) {
+            return latch.await(timeout, unit);
+        }
+        // workers execute the rest of tasks before stop
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            TimeUnit.NANOSECONDS.timedJoin(worker, Math.max(1, deadline - System.nanoTime()));
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops workers and waits until all already submitted tasks are executed
+     */
+    void shutdown() {
+        Lock lock = shutdownLock.writeLock();
+        lock.lock();
+        try {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            for (Worker worker : workers) {
+                // STOP mustn't be lost
+                putUninterruptibly(worker, STOP);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Worker worker : workers) {
+            await(worker);
+        }
+    }
+
+    /**
+     * Worker frees up its queue meanwhile, interrupt status is restored after put
+     */
+    private void putUninterruptibly(Worker worker, Runnable task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    worker.queue.put(task);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for worker uninterruptibly, otherwise caller could
+     * run its task before tasks of the same key left in worker queue
+     */
+    private void await(Worker worker) {
+        if (worker == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    worker.join();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+
+        final BlockingQueue<Runnable> queue;
+
+        Worker(String name, int queueCapacity) {
+            super(name);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == STOP) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Can't apply query cache update", e);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+
+import org.hibernate.type.BasicType;
+import org.hibernate.type.Type;
+import org.hibernate.type.TypeResolver;
+
+/**
+ * Compact encoding of values stored by {@link java.io.Externalizable} cache entries.
+ * Common parameter and row values are written with one byte tag instead of
+ * class descriptor, other values fall back to Java serialization.
+ *
+ */
+final class CompactSerializer {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte BOOLEAN_TRUE = 4;
+    private static final byte BOOLEAN_FALSE = 5;
+    private static final byte ROW = 6;
+    private static final byte OBJECT = 7;
+
+    private static final byte BASIC_TYPE = 0;
+    private static final byte SERIALIZED_TYPE = 1;
+
+    // default registry of basic types, resolves types by name
+    private static final TypeResolver TYPE_RESOLVER = new TypeResolver();
+
+    private CompactSerializer() {
+    }
+
+    static void writeValue(ObjectOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            // handle shares equal strings in the same stream
+            out.writeObject(value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigzag((Long) value));
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            writeVarLong(out, zigzag((Integer) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? BOOLEAN_TRUE : BOOLEAN_FALSE);
+        } else if (value.getClass() == Serializable[].class) {
+            // multi-column row
+            Serializable[] row = (Serializable[]) value;
+            out.writeByte(ROW);
+            writeVarLong(out, row.length);
+            for (Serializable column : row) {
+                writeValue(out, column);
+            }
+        } else {
+            out.writeByte(OBJECT);
+            out.writeObject(value);
+        }
+    }
+
+    static Object readValue(ObjectInput in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return in.readObject();
+        case LONG:
+            return unzigzag(readVarLong(in));
+        case INTEGER:
+            return (int) unzigzag(readVarLong(in));
+        case BOOLEAN_TRUE:
+            return Boolean.TRUE;
+        case BOOLEAN_FALSE:
+            return Boolean.FALSE;
+        case ROW:
+            Serializable[] row = new Serializable[(int) readVarLong(in)];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (Serializable) readValue(in);
+            }
+            return row;
+        case OBJECT:
+            return in.readObject();
+        default:
+            throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    /**
+     * Basic types are written by name and resolved to the registered instances
+     */
+    static void writeType(ObjectOutput out, Type type) throws IOException {
+        if (type instanceof BasicType && TYPE_RESOLVER.basic(type.getName()) == type) {
+            out.writeByte(BASIC_TYPE);
+            out.writeUTF(type.getName());
+        } else {
+            out.writeByte(SERIALIZED_TYPE);
+            out.writeObject(type);
+        }
+    }
+
+    static Type readType(ObjectInput in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        if (tag == BASIC_TYPE) {
+            String name = in.readUTF();
+            Type type = TYPE_RESOLVER.basic(name);
+            if (type == null) {
+                throw new IOException("Unknown basic type: " + name);
+            }
+            return type;
+        }
+        return (Type) in.readObject();
+    }
+
+    static void writeTypes(ObjectOutput out, Type[] types) throws IOException {
+        writeVarLong(out, types.length);
+        for (Type type : types) {
+            writeType(out, type);
+        }
+    }
+
+    static Type[] readTypes(ObjectInput in) throws IOException, ClassNotFoundException {
+        Type[] types = new Type[(int) readVarLong(in)];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = readType(in);
+        }
+        return types;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+}
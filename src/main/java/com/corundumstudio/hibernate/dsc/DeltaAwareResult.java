@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+
+/**
+ * Infinispan region value which merges {@link ResultListDelta} into wrapped result
+ * on each node, so result change replicates only changed rows.
+ *
+ */
+public class DeltaAwareResult implements ResultHolder, DeltaAware, Externalizable {
+
+    private static final long serialVersionUID = -2861495839107305513L;
+
+    private ResultList result;
+
+    DeltaAwareResult(ResultList result) {
+        this.result = result;
+    }
+
+    /**
+     * Used by deserialization
+     */
+    public DeltaAwareResult() {
+    }
+
+    @Override
+    public ResultList getResultList() {
+        return result;
+    }
+
+    /**
+     * @return delta which replaces whole result
+     */
+    @Override
+    public Delta delta() {
+        return new ResultListDelta(result, false, Collections.<Object>emptyList(), Collections.<Object>emptyList(), false);
+    }
+
+    @Override
+    public void commit() {
+        // changes are applied at once, there is nothing to reset
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeObject(result);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        result = (ResultList) in.readObject();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DeltaAwareResult)) {
+            return false;
+        }
+        ResultList other = ((DeltaAwareResult) obj).result;
+        if (result == null) {
+            return other == null;
+        }
+        return result.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        if (result == null) {
+            return 0;
+        }
+        return result.hashCode();
+    }
+
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.corundumstudio.concurrent.StripedLock;
+
+/**
+ * Keeps changes of cached query result as separate {@link ResultDelta} entry,
+ * so single add or remove doesn't rewrite whole result list.
+ * Delta is merged into result list in background when it reaches compaction threshold.
+ *
+ */
+class DeltaResultStore {
+
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<QueryKey, Boolean> scheduledCompactions = new ConcurrentHashMap<QueryKey, Boolean>();
+    private final QueryResultsRegion region;
+    private final int compactionThreshold;
+    private final ExecutorService compactionExecutor;
+    // guards result and delta rewrite, null if region doesn't support conditional replace
+    private final ReplaceableRegion replaceableRegion;
+    // serializes local result puts and delta appends with compaction
+    private final StripedLock deltaLocks = new StripedLock(64);
+
+    DeltaResultStore(final QueryResultsRegion region, ReplaceableRegion replaceableRegion, int compactionThreshold) {
+        this.region = region;
+        this.replaceableRegion = replaceableRegion;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dsc-compaction-" + region.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    ResultList get(QueryKey key) {
+        DeltaKey deltaKey = new DeltaKey(key);
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            ResultList base = (ResultList) region.get(key);
+            if (base == null) {
+                return null;
+            }
+            ResultDelta delta = (ResultDelta) region.get(deltaKey);
+            if (delta == null) {
+                return base;
+            }
+            if (delta.canApplyTo(base)) {
+                return delta.applyTo(base);
+            }
+            // compaction has replaced result and trimmed delta between reads
+        }
+        return null;
+    }
+
+    void update(QueryKey key, boolean clear, List<Object> removedRows, List<Object> addedRows) {
+        DeltaKey deltaKey = new DeltaKey(key);
+        ResultDelta delta;
+        Lock lock = deltaLocks.getLock(deltaKey);
+        lock.lock();
+        try {
+            delta = getDelta(deltaKey).append(clear, removedRows, addedRows);
+            region.put(deltaKey, delta);
+        } finally {
+            lock.unlock();
+        }
+        scheduleCompaction(key, delta);
+    }
+
+    /**
+     * Stores result loaded from database and drops changes made to previous result
+     */
+    void put(QueryKey key, ResultList result) {
+        DeltaKey deltaKey = new DeltaKey(key);
+        // serialized with local compaction of previous result
+        Lock lock = deltaLocks.getLock(deltaKey);
+        lock.lock();
+        try {
+            region.evict(deltaKey);
+            region.put(key, result);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops changes made to previous result stored by the key
+     */
+    void reset(QueryKey key) {
+        region.evict(new DeltaKey(key));
+    }
+
+    private ResultDelta getDelta(DeltaKey deltaKey) {
+        ResultDelta delta = (ResultDelta) region.get(deltaKey);
+        if (delta == null) {
+            delta = new ResultDelta();
+        }
+        return delta;
+    }
+
+    private void scheduleCompaction(final QueryKey key, ResultDelta delta) {
+        if (delta.size() < compactionThreshold
+                || scheduledCompactions.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scheduledCompactions.remove(key);
+                    try {
+                        compact(key);
+                    } catch (RuntimeException e) {
+                        log.error("Can't compact result delta in region: " + region.getName(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduledCompactions.remove(key);
+        }
+    }
+
+    void compact(QueryKey key) {
+        DeltaKey deltaKey = new DeltaKey(key);
+        ResultDelta delta = (ResultDelta) region.get(deltaKey);
+        if (delta == null) {
+            return;
+        }
+        ResultList base = (ResultList) region.get(key);
+        if (base == null) {
+            region.evict(deltaKey);
+            return;
+        }
+        if (!delta.canApplyTo(base)) {
+            return;
+        }
+        ResultList compacted = delta.applyTo(base);
+
+        Lock lock = deltaLocks.getLock(deltaKey);
+        lock.lock();
+        try {
+            // result could be reloaded from database meanwhile
+            if (!replace(key, base, compacted)) {
+                return;
+            }
+            // readers skip changes already applied to compacted result,
+            // so delta may be trimmed after result update
+            ResultDelta currentDelta = (ResultDelta) region.get(deltaKey);
+            if (currentDelta == null) {
+                return;
+            }
+            ResultDelta trimmed = currentDelta.trim(compacted);
+            if (replaceableRegion != null) {
+                // delta could be appended by another node meanwhile
+                replaceableRegion.replace(deltaKey, currentDelta, trimmed);
+            } else {
+                region.put(deltaKey, trimmed);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Local reloads are serialized with compaction by the key lock,
+     * reloads made by other nodes are detected only by conditional replace
+     *
+     * @return <code>false</code> if result has been changed after <code>base</code> read
+     */
+    private boolean replace(QueryKey key, ResultList base, ResultList compacted) {
+        if (replaceableRegion != null) {
+            return replaceableRegion.replace(key, base.replaceToken(), compacted);
+        }
+        ResultList current = (ResultList) region.get(key);
+        if (current == null || !base.replaceToken().equals(current)) {
+            return false;
+        }
+        region.put(key, compacted);
+        // region may skip put silently, on lock timeout for example
+        ResultList stored = (ResultList) region.get(key);
+        return stored != null
+                && stored.getDeltaId() == compacted.getDeltaId()
+                && stored.getAppliedChanges() == compacted.getAppliedChanges();
+    }
+
+    void shutdown() {
+        compactionExecutor.shutdown();
+    }
+
+    static class DeltaKey implements Serializable {
+
+        private static final long serialVersionUID = 2410227236358467371L;
+
+        private final QueryKey key;
+
+        DeltaKey(QueryKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + 7;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DeltaKey)) {
+                return false;
+            }
+            return key.equals(((DeltaKey) obj).key);
+        }
+
+    }
+
+}
@@ -15,25 +15,41 @@
  */
 package com.corundumstudio.hibernate.dsc;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.persistence.EntityNotFoundException;
 
 import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
+import org.hibernate.UnresolvableObjectException;
+import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.QueryKey;
 import org.hibernate.cache.internal.StandardQueryCache;
 import org.hibernate.cache.spi.UpdateTimestampsCache;
 import org.hibernate.cfg.Settings;
 import org.hibernate.engine.spi.SessionImplementor;
-import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.IntegerType;
+import org.hibernate.type.LongType;
 import org.hibernate.type.Type;
 import org.hibernate.type.TypeHelper;
 import org.slf4j.Logger;
@@ -41,131 +57,1051 @@ import org.slf4j.LoggerFactory;
 
 public class DynamicQueryCache extends StandardQueryCache {
 
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     private final Logger log = LoggerFactory.getLogger(getClass());
-    private final Field positionalParameterField;
+    private final NamedParametersAccessor namedParametersAccessor;
+    private final ReadMode readMode;
+    private final int touchSampleMask;
+    // racy counter is enough for sampling
+    private int hitCounter;
+    // null if delta maintenance is disabled
+    private final DeltaResultStore deltaStore;
+    private final boolean indexedResults;
+    private final boolean primitiveResults;
+    private final int orderOverflow;
+    // null if result order isn't registered
+    private volatile ResultOrder resultOrder;
+    // null if region doesn't support conditional replace
+    private final ReplaceableRegion replaceableRegion;
+    private final int optimisticMaxAttempts;
+    // listeners dispatching entity events to the region, they are shut down along with it
+    private final Set<QueryCacheEntityListener> entityListeners = new CopyOnWriteArraySet<QueryCacheEntityListener>();
+    private final DynamicQueryCacheStatistics statistics;
+    // null if region weight is unlimited
+    private final WeightBudget budget;
+    // null if near cache is disabled
+    private final ParamKeyNearCache nearCache;
+    // null if presence filter is disabled
+    private final ParamKeyFilter presenceFilter;
+    private final InfinispanRegionListener regionListener;
+    // null if values are written with their shapes
+    private final InfinispanQueryShapes queryShapes;
+    // null if result changes are replicated as whole result
+    private final InfinispanDeltaPropagation deltaPropagation;
+    private final ParamElementIndex elementIndex = new ParamElementIndex();
+    private final RangeIndex rangeIndex = new RangeIndex();
+    // keeps indexes in sync with region entries
+    private final ParamKeyListener paramKeyIndexes = new ParamKeyListener() {
+        @Override
+        public void onAdd(ParamKey paramKey) {
+            elementIndex.add(paramKey);
+            rangeIndex.add(paramKey);
+        }
+
+        @Override
+        public void onRemove(ParamKey paramKey) {
+            elementIndex.remove(paramKey);
+            rangeIndex.remove(paramKey);
+            if (resultIndex != null) {
+                resultIndex.remove(paramKey);
+            }
+        }
+    };
+    // null if result index is disabled
+    private final ResultIndex resultIndex;
+    // null if statistics MBean isn't registered
+    private ObjectName mbeanName;
+    private final int preloadThreads;
+    private final int preloadBatchSize;
+    private final int preloadMaxRows;
+    private final Object preloadLock = new Object();
+    // keys changed during preload or restore, null if there is no one in progress
+    private volatile ConcurrentMap<ParamKey, Boolean> preloadChangedKeys;
+    // result returned instead of database query during preload
+    private final ThreadLocal<List> preloadedResult = new ThreadLocal<List>();
+    // cache lookups check preloaded result only while preload is in progress
+    private volatile boolean preloading;
+    // tables of region queries and entities, snapshot is validated against them
+    private final ConcurrentMap<Serializable, Boolean> querySpaces = new ConcurrentHashMap<Serializable, Boolean>();
 
-    public DynamicQueryCache(Settings settings, Properties props,
-                UpdateTimestampsCache updateTimestampsCache, String regionName, Field positionalParameterField) {
+    public DynamicQueryCache(Settings settings, Properties props, UpdateTimestampsCache updateTimestampsCache,
+                String regionName, NamedParametersAccessor namedParametersAccessor,
+                DynamicQueryCacheSettings cacheSettings) {
         super(settings, props, updateTimestampsCache, regionName);
-        this.positionalParameterField = positionalParameterField;
+        this.namedParametersAccessor = namedParametersAccessor;
+        this.readMode = cacheSettings.getReadMode();
+        this.touchSampleMask = Integer.highestOneBit(Math.max(1, cacheSettings.getTouchSampleRate() * 2 - 1)) - 1;
+        if (cacheSettings.isOptimisticUpdates()) {
+            replaceableRegion = ReplaceableRegions.valueOf(getRegion());
+        } else {
+            replaceableRegion = null;
+        }
+        if (cacheSettings.isDeltaMaintenance()) {
+            // compaction uses conditional replace regardless of optimistic updates
+            deltaStore = new DeltaResultStore(getRegion(), ReplaceableRegions.valueOf(getRegion()),
+                                                cacheSettings.getDeltaCompactionThreshold());
+        } else {
+            deltaStore = null;
+        }
+        this.indexedResults = cacheSettings.isIndexedResults();
+        this.primitiveResults = cacheSettings.isPrimitiveResults();
+        this.orderOverflow = cacheSettings.getOrderOverflow();
+        this.optimisticMaxAttempts = cacheSettings.getOptimisticMaxAttempts();
+        ConcurrentMap<Object, Object> regionCache = ReplaceableRegions.getInfinispanCache(getRegion());
+        if (deltaStore != null && regionCache != null && InfinispanReplaceableRegion.isStoreValuesAsBinary(regionCache)) {
+            log.warn("Delta of {} region is merged on every read, since region stores values as binary. "
+                        + "Disable storeAsBinary to share merged results between reads", regionName);
+        }
+        this.statistics = new DynamicQueryCacheStatistics(regionName);
+        long maxWeight = cacheSettings.getMaxWeight();
+        if (maxWeight > 0) {
+            budget = new WeightBudget(getRegion(), maxWeight, statistics, paramKeyIndexes);
+        } else {
+            budget = null;
+        }
+        if (cacheSettings.isResultIndex()) {
+            resultIndex = new ResultIndex();
+        } else {
+            resultIndex = null;
+        }
+        this.preloadThreads = cacheSettings.getPreloadThreads();
+        this.preloadBatchSize = cacheSettings.getPreloadBatchSize();
+        this.preloadMaxRows = cacheSettings.getPreloadMaxRows();
+        int nearCacheSize = cacheSettings.getNearCacheSize();
+        int filterKeys = cacheSettings.getPresenceFilterKeys();
+        boolean propagateDeltas = cacheSettings.isDeltaPropagation();
+        if (regionCache == null && (nearCacheSize > 0 || filterKeys > 0 || propagateDeltas)) {
+            log.warn("Near cache, presence filter and delta propagation of {} region are disabled, "
+                        + "they require Infinispan region", regionName);
+        }
+        if (propagateDeltas && regionCache != null && deltaStore == null) {
+            deltaPropagation = InfinispanDeltaPropagation.create(regionCache);
+            if (deltaPropagation == null) {
+                log.warn("Delta propagation of {} region is disabled, it requires storeAsBinary disabled", regionName);
+            }
+        } else {
+            deltaPropagation = null;
+        }
+        if (regionCache != null && (nearCacheSize > 0 || filterKeys > 0)) {
+            nearCache = nearCacheSize > 0 ? new ParamKeyNearCache(nearCacheSize) : null;
+            if (filterKeys > 0) {
+                presenceFilter = new ParamKeyFilter(filterKeys, cacheSettings.getPresenceFilterFpp());
+                log.debug("Presence filter of {} region takes {} bytes", regionName, presenceFilter.getSize());
+            } else {
+                presenceFilter = null;
+            }
+        } else {
+            nearCache = null;
+            presenceFilter = null;
+        }
+        if (regionCache != null) {
+            // IN-list and range query indexes get entries cached by other nodes
+            regionListener = InfinispanRegionListener.register(regionCache, nearCache, presenceFilter, paramKeyIndexes);
+            if (regionListener != null && regionListener.isDistributed()) {
+                log.warn("IN-list and range queries of {} region cached by other nodes aren't found "
+                            + "by entity events in distributed mode, use replicated or invalidation mode", regionName);
+            }
+            queryShapes = InfinispanQueryShapes.register(regionCache);
+        } else {
+            regionListener = null;
+            queryShapes = null;
+        }
     }
 
     @Override
     public boolean put(QueryKey key, Type[] returnTypes, List result,
                             boolean isNaturalKeyLookup, SessionImplementor session)
                             throws HibernateException {
-        boolean res = super.put(key, returnTypes, result, isNaturalKeyLookup, session);
+        ResultOrder order = resultOrder;
+        ParamKey paramKey = namedParametersAccessor.getParamKey(key);
+        boolean res = putResult(key, paramKey, returnTypes, result, isNaturalKeyLookup, order, session);
         if (res) {
-            Map<String, Object> values = extractValues(key);
-            log.debug("put to " + getRegion().getName() + ", values: " + values);
-            getRegion().put(values, new QueryCacheValue(key, returnTypes));
+            if (log.isDebugEnabled()) {
+                log.debug("put to {}, values: {}", getRegion().getName(), paramKey);
+            }
+            putQueryCacheValue(paramKey, new QueryCacheValue(key, returnTypes, order != null));
+            paramKeyIndexes.onAdd(paramKey);
+            if (budget != null) {
+                budget.evictIfNeeded();
+            }
         }
         return res;
     }
 
+    /**
+     * Same as {@link StandardQueryCache#put} but stores result as {@link ResultList}
+     */
+    private boolean putResult(QueryKey key, ParamKey paramKey, Type[] returnTypes, List result,
+                            boolean isNaturalKeyLookup, ResultOrder order, SessionImplementor session) {
+        if (isNaturalKeyLookup && result.isEmpty()) {
+            return false;
+        }
+        if (resultIndex != null) {
+            // ids of replaced result
+            resultIndex.remove(paramKey);
+        }
+        ResultList cacheable;
+        if (order != null) {
+            List<OrderedRow> rows = new ArrayList<OrderedRow>(result.size());
+            for (Object row : result) {
+                Object disassembledRow = disassemble(returnTypes, row, session);
+                indexResult(returnTypes, disassembledRow, paramKey);
+                rows.add(new OrderedRow(order.getSortKey(row), disassembledRow));
+            }
+            cacheable = new OrderedResultList(getRegion().nextTimestamp(), order, orderOverflow, rows);
+        } else if (primitiveResults && isPrimitiveResult(returnTypes, result)) {
+            // immutable numbers don't need disassembly
+            boolean integer = returnTypes[0] instanceof IntegerType;
+            cacheable = new LongResultList(getRegion().nextTimestamp(), integer, result.toArray());
+        } else {
+            cacheable = createResultList(getRegion().nextTimestamp(), result.size());
+            for (Object row : result) {
+                Object disassembledRow = disassemble(returnTypes, row, session);
+                indexResult(returnTypes, disassembledRow, paramKey);
+                cacheable.addRow(disassembledRow);
+            }
+        }
+        putResultList(key, cacheable);
+        statistics.recordResultSize(cacheable.rowCount());
+        if (budget != null) {
+            budget.add(key, paramKey, cacheable.rowCount());
+        }
+        return true;
+    }
+
+    /**
+     * Loads results of all parameter values with single grouped query
+     * instead of query per parameter value. Results changed by entity
+     * events during preload aren't cached, since their rows may be stale.
+     * Should be called on startup, concurrent preloads of the region run one by one.
+     *
+     * @return amount of preloaded results
+     * @see DynamicQueryCacheSettings#PRELOAD_THREADS
+     * @see DynamicQueryCacheSettings#PRELOAD_BATCH_SIZE
+     * @see DynamicQueryCacheSettings#PRELOAD_MAX_ROWS
+     */
+    public long preload(SessionFactory sessionFactory, PreloadCallback callback) {
+        synchronized (preloadLock) {
+            preloadChangedKeys = new ConcurrentHashMap<ParamKey, Boolean>();
+            preloading = true;
+            try {
+                QueryCachePreloader preloader = new QueryCachePreloader(this, sessionFactory, callback,
+                                                        preloadThreads, preloadBatchSize, preloadMaxRows);
+                return preloader.preload();
+            } finally {
+                preloading = false;
+                preloadChangedKeys = null;
+            }
+        }
+    }
+
+    /**
+     * Caches result of query without its execution,
+     * query key is generated by Hibernate during cache lookup
+     */
+    void preloadResult(Query query, List result) {
+        preloadedResult.set(result);
+        try {
+            query.list();
+            if (preloadedResult.get() != null) {
+                throw new IllegalStateException("Query isn't cached in " + getRegion().getName()
+                                                    + " region: " + query.getQueryString());
+            }
+        } finally {
+            preloadedResult.remove();
+        }
+    }
+
+    private void putPreloaded(QueryKey key, Type[] returnTypes, List result, SessionImplementor session) {
+        Map<ParamKey, Boolean> changedKeys = preloadChangedKeys;
+        ParamKey paramKey = namedParametersAccessor.getParamKey(key);
+        if (changedKeys != null && changedKeys.containsKey(paramKey)) {
+            statistics.recordSkippedPreload();
+            return;
+        }
+        put(key, returnTypes, result, false, session);
+        if (changedKeys != null && changedKeys.containsKey(paramKey)) {
+            // change could be missed since result wasn't cached yet
+            getRegion().evict(key);
+            getRegion().evict(paramKey);
+            paramKeyIndexes.onRemove(paramKey);
+            statistics.recordSkippedPreload();
+            return;
+        }
+        statistics.recordPreload(result.size());
+    }
+
+    void addQuerySpaces(Collection<?> spaces) {
+        if (spaces == null) {
+            return;
+        }
+        for (Object space : spaces) {
+            if (!querySpaces.containsKey(space)) {
+                querySpaces.put((Serializable) space, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Writes cached results and their QueryCacheValue entries to file,
+     * file is replaced only after snapshot has been completely written.
+     * Should be called on shutdown, results changed after snapshot aren't restored.
+     *
+     * @return amount of written results
+     * @see #restore(File)
+     */
+    public int snapshot(File file) throws IOException {
+        long timestamp = getRegion().nextTimestamp();
+        SnapshotWriter writer = new SnapshotWriter(file, getRegion().getName(), timestamp,
+                                                        new HashSet<Serializable>(querySpaces.keySet()));
+        boolean committed = false;
+        try {
+            for (Object key : getRegionKeys()) {
+                if (!(key instanceof ParamKey)) {
+                    continue;
+                }
+                Object value = getRegion().get(key);
+                if (!(value instanceof QueryCacheValue)) {
+                    continue;
+                }
+                QueryCacheValue cacheValue = resolve((QueryCacheValue) value);
+                if (cacheValue == null) {
+                    continue;
+                }
+                ResultList result = getResultList(cacheValue.getKey());
+                if (result == null || result.isDrained()) {
+                    continue;
+                }
+                writer.write((ParamKey) key, cacheValue, result);
+            }
+            writer.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                writer.abort();
+            }
+        }
+        log.info("Snapshot of {} region with {} results written to {}",
+                    new Object[] {getRegion().getName(), writer.getCount(), file});
+        return writer.getCount();
+    }
+
+    /**
+     * Infinispan cache keys are iterated without copy of region values,
+     * other regions are copied by region toMap()
+     */
+    private Collection<?> getRegionKeys() {
+        ConcurrentMap<Object, Object> regionCache = ReplaceableRegions.getInfinispanCache(getRegion());
+        if (regionCache != null) {
+            return regionCache.keySet();
+        }
+        return getRegion().toMap().keySet();
+    }
+
+    /**
+     * Restores results written by {@link #snapshot(File)}. Snapshot is rejected
+     * if {@link UpdateTimestampsCache} has updates of region tables after the snapshot,
+     * each restored result is still checked against its own timestamp on read.
+     * Should be called on startup, results changed during restore are skipped.
+     * <p>
+     * Updates are known only if timestamps region outlives the node, e.g. it's replicated
+     * to other running nodes. Local timestamps region is empty after restart, so every
+     * snapshot is accepted: tables shouldn't be changed after snapshot until restore.
+     *
+     * @return amount of restored results, <code>0</code> if snapshot is outdated
+     */
+    public int restore(File file) throws IOException {
+        SnapshotReader reader = new SnapshotReader(file);
+        try {
+            return restore(file, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int restore(File file, SnapshotReader reader) throws IOException {
+        if (!getRegion().getName().equals(reader.getRegionName())) {
+            throw new IOException("Snapshot of " + reader.getRegionName() + " region can't be restored to "
+                                    + getRegion().getName() + " region: " + file);
+        }
+        Set<Serializable> spaces = new HashSet<Serializable>(reader.getSpaces());
+        spaces.addAll(querySpaces.keySet());
+        if (!isUpToDate(spaces, reader.getTimestamp())) {
+            log.warn("Snapshot of {} region is outdated: {}", getRegion().getName(), file);
+            return 0;
+        }
+        addQuerySpaces(reader.getSpaces());
+
+        synchronized (preloadLock) {
+            preloadChangedKeys = new ConcurrentHashMap<ParamKey, Boolean>();
+            try {
+                int count = 0;
+                while (reader.next()) {
+                    if (putRestored(reader.getParamKey(), reader.getValue(), reader.getResult())) {
+                        count++;
+                    }
+                }
+                log.info("{} results of {} region restored from {}", new Object[] {count, getRegion().getName(), file});
+                return count;
+            } finally {
+                preloadChangedKeys = null;
+            }
+        }
+    }
+
+    private boolean putRestored(ParamKey paramKey, QueryCacheValue value, ResultList result) {
+        Map<ParamKey, Boolean> changedKeys = preloadChangedKeys;
+        if (changedKeys.containsKey(paramKey)) {
+            return false;
+        }
+        QueryKey key = value.getKey();
+        putResultList(key, result);
+        putQueryCacheValue(paramKey, value);
+        paramKeyIndexes.onAdd(paramKey);
+        if (resultIndex != null && isEntityResult(value.getReturnTypes())) {
+            for (Object row : result.toRowArray()) {
+                indexResult(value.getReturnTypes(), row, paramKey);
+            }
+        }
+        statistics.recordResultSize(result.rowCount());
+        if (budget != null) {
+            budget.add(key, paramKey, result.rowCount());
+            budget.evictIfNeeded();
+        }
+        if (changedKeys.containsKey(paramKey)) {
+            // change could be missed since result wasn't cached yet
+            getRegion().evict(key);
+            getRegion().evict(paramKey);
+            paramKeyIndexes.onRemove(paramKey);
+            return false;
+        }
+        return true;
+    }
+
+    private void indexResult(Type[] returnTypes, Object disassembledRow, ParamKey paramKey) {
+        if (resultIndex != null && disassembledRow != null && isEntityResult(returnTypes)) {
+            resultIndex.add(((EntityType) returnTypes[0]).getAssociatedEntityName(), disassembledRow, paramKey);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if result rows are disassembled to entity ids
+     */
+    private boolean isEntityResult(Type[] returnTypes) {
+        return returnTypes.length == 1 && returnTypes[0] instanceof EntityType;
+    }
+
+    private boolean isPrimitiveResult(Type[] returnTypes, List result) {
+        if (returnTypes.length != 1
+                || !(returnTypes[0] instanceof LongType || returnTypes[0] instanceof IntegerType)) {
+            return false;
+        }
+        for (Object row : result) {
+            if (row == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ResultList createResultList(long timestamp, int capacity) {
+        if (indexedResults) {
+            return new IndexedResultList(timestamp, capacity);
+        }
+        return new ArrayResultList(timestamp, capacity);
+    }
+
+    /**
+     * Sets order of region results. Results cached before aren't used
+     * since they don't have sort keys
+     */
+    void setResultOrder(ResultOrder order) {
+        resultOrder = order;
+    }
+
     @Override
     public List get(QueryKey key, Type[] returnTypes,
                         boolean isNaturalKeyLookup, Set spaces, SessionImplementor session)
                         throws HibernateException {
-        List res = super.get(key, returnTypes, isNaturalKeyLookup, spaces, session);
-        // touch cache key, to avoid eviction
-        Map<String, Object> values = extractValues(key);
-        QueryCacheValue cacheValue = getQueryCacheValue(values);
-        log.debug("get from " + getRegion().getName() + ", values: " + values + ", result: " + res);
-        if (res != null && cacheValue == null) {
-            log.warn("QueryCacheValue entry has gone from cache before result for region: {}", getRegion().getName());
-            getRegion().put(values, new QueryCacheValue(key, returnTypes));
+        if (preloading) {
+            List preloaded = preloadedResult.get();
+            if (preloaded != null) {
+                preloadedResult.remove();
+                addQuerySpaces(spaces);
+                putPreloaded(key, returnTypes, preloaded, session);
+                return preloaded;
+            }
+        }
+        ResultList cacheable = getResultList(key);
+        if (cacheable != null && !isMaintained(key, cacheable)) {
+            cacheable = null;
+        }
+        List res = assemble(key, cacheable, returnTypes, isNaturalKeyLookup, spaces, session);
+        if (log.isDebugEnabled()) {
+            log.debug("get from {}, key: {}, result: {}", new Object[] {getRegion().getName(), key, res});
+        }
+        if (res == null) {
+            // miss is followed by put of loaded result
+            addQuerySpaces(spaces);
+            statistics.recordMiss();
+        } else {
+            statistics.recordHit();
+            if (budget != null) {
+                budget.touch(key);
+            }
+            if (isTouchRequired()) {
+                touch(key, returnTypes, cacheable instanceof OrderedResultList);
+            }
         }
         return res;
     }
 
-    private Map<String, Object> extractValues(QueryKey key) {
-        try {
-            Map<String, Object> paramValues = (Map<String, Object>) positionalParameterField.get(key);
-            Map<String, Object> values = new HashMap<String, Object>(paramValues.size());
-            for (Map.Entry<String, Object> entry : paramValues.entrySet()) {
-                TypedValue typeValue = (TypedValue) entry.getValue();
-                values.put(entry.getKey(), typeValue.getValue());
-            }
-            return values;
-        } catch (Exception e) {
-            throw new HibernateException(e);
+    private ResultList getResultList(QueryKey key) {
+        if (deltaStore != null) {
+            return deltaStore.get(key);
         }
+        Object value = getRegion().get(key);
+        if (value instanceof ResultHolder) {
+            return ((ResultHolder) value).getResultList();
+        }
+        return (ResultList) value;
     }
 
-    private QueryCacheValue getQueryCacheValue(Map<String, Object> values) {
-        return (QueryCacheValue) getRegion().get(values);
+    private void putResultList(QueryKey key, ResultList result) {
+        if (deltaStore != null) {
+            deltaStore.put(key, result);
+        } else if (deltaPropagation != null) {
+            getRegion().put(key, deltaPropagation.wrap(result));
+        } else {
+            getRegion().put(key, result);
+        }
     }
 
-    private QueryCacheValue getQueryCacheTrasformed(Map<String, Object> values) {
-        // TODO refactor it!
-        String key = null;
-        for (Entry<String, Object> entry : values.entrySet()) {
-            if (entry.getValue() instanceof Collection) {
-                int i = 0;
-                for (Object value : (Collection)entry.getValue()) {
-                    values.put(entry.getKey() + i + "_", value);
-                    i++;
+    /**
+     * @return <code>false</code> if result can't be used since it isn't
+     *          updated anymore, so it should be reloaded
+     */
+    private boolean isMaintained(QueryKey key, ResultList cacheable) {
+        if (cacheable.isDrained()) {
+            return false;
+        }
+        if (resultOrder != null && !(cacheable instanceof OrderedResultList)) {
+            return false;
+        }
+        if (!rangeIndex.isEmpty() && !rangeIndex.isIndexed(namedParametersAccessor.getParamKey(key))) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link StandardQueryCache#get} but for already loaded result
+     */
+    private List assemble(QueryKey key, ResultList cacheable, Type[] returnTypes,
+                        boolean isNaturalKeyLookup, Set spaces, SessionImplementor session) {
+        if (cacheable == null) {
+            return null;
+        }
+        if (!isNaturalKeyLookup && !isUpToDate(spaces, cacheable.getTimestamp())) {
+            return null;
+        }
+
+        boolean singleResult = returnTypes.length == 1;
+        Object[] rows = cacheable.toRowArray();
+        for (Object row : rows) {
+            if (singleResult) {
+                returnTypes[0].beforeAssemble((Serializable) row, session);
+            } else {
+                TypeHelper.beforeAssemble((Serializable[]) row, returnTypes, session);
+            }
+        }
+
+        List result = new ArrayList(rows.length);
+        for (Object row : rows) {
+            try {
+                if (singleResult) {
+                    result.add(returnTypes[0].assemble((Serializable) row, session, null));
+                } else {
+                    result.add(TypeHelper.assemble((Serializable[]) row, returnTypes, session, null));
                 }
-                key = entry.getKey();
-                break;
+            } catch (RuntimeException e) {
+                if (isNaturalKeyLookup
+                        && (e instanceof UnresolvableObjectException || e instanceof EntityNotFoundException)) {
+                    // the entity was deleted, so the cached result is stale
+                    getRegion().evict(key);
+                    return null;
+                }
+                throw e;
             }
         }
-        if (key != null) {
-            values.remove(key);
+        return result;
+    }
+
+    private boolean isTouchRequired() {
+        switch (readMode) {
+        case TOUCH:
+            return true;
+        case SAMPLED:
+            return (hitCounter++ & touchSampleMask) == 0;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Touch QueryCacheValue entry to avoid its eviction before query result
+     */
+    private void touch(QueryKey key, Type[] returnTypes, boolean ordered) {
+        ParamKey paramKey = namedParametersAccessor.getParamKey(key);
+        QueryCacheValue cacheValue = getQueryCacheValue(paramKey);
+        if (cacheValue == null) {
+            statistics.recordVanishedValue();
+            log.warn("QueryCacheValue entry has gone from cache before result for region: {}", getRegion().getName());
+            putQueryCacheValue(paramKey, new QueryCacheValue(key, returnTypes, ordered));
+        }
+    }
+
+    private QueryCacheValue getQueryCacheValue(ParamKey paramKey) {
+        return resolve((QueryCacheValue) getRegion().get(paramKey));
+    }
+
+    /**
+     * Value written by {@link QueryCacheValueExternalizer} gets its key from shape of the region
+     *
+     * @return <code>null</code> if shape of the value isn't known
+     */
+    private QueryCacheValue resolve(QueryCacheValue value) {
+        if (value == null || value.isResolved()) {
+            return value;
+        }
+        QueryShape shape = null;
+        if (queryShapes != null) {
+            shape = queryShapes.get(value.getShapeId());
+        }
+        if (shape == null || !value.resolve(shape)) {
+            log.debug("Unknown shape {} of QueryCacheValue entry in region: {}", value.getShapeId(), getRegion().getName());
+            return null;
         }
-        return (QueryCacheValue) getRegion().get(values);
+        return value;
     }
 
+    private void putQueryCacheValue(ParamKey paramKey, QueryCacheValue value) {
+        if (queryShapes != null) {
+            queryShapes.publish(value);
+        }
+        getRegion().put(paramKey, value);
+    }
+
+    /**
+     * Same as {@link #getQueryCacheValue} but answered by presence filter or near cache
+     * if possible, used by entity events since most of them change nothing cached
+     */
+    private QueryCacheValue findQueryCacheValue(ParamKey paramKey) {
+        if (presenceFilter != null && !presenceFilter.mightContain(paramKey)) {
+            statistics.recordFilteredLookup();
+            return null;
+        }
+        if (nearCache == null) {
+            return getQueryCacheValue(paramKey);
+        }
+        Object cached = nearCache.get(paramKey);
+        if (cached != null) {
+            statistics.recordNearCacheHit();
+            if (cached == ParamKeyNearCache.ABSENT) {
+                return null;
+            }
+            return (QueryCacheValue) cached;
+        }
+        long stamp = nearCache.stamp(paramKey);
+        QueryCacheValue value = getQueryCacheValue(paramKey);
+        nearCache.put(paramKey, value, stamp);
+        return value;
+    }
 
-    public void addResult(Map<String, Object> queryParams, Object queryResult, boolean uniqueResult, SessionImplementor session) {
-        QueryCacheValue entry = getQueryCacheTrasformed(queryParams);
+    public void addResult(ParamKey paramKey, Object queryResult, boolean uniqueResult, SessionImplementor session) {
+        ResultChanges changes = new ResultChanges();
+        changes.add(queryResult, uniqueResult);
+        applyChanges(paramKey, changes, session);
+    }
+
+    public void removeResult(ParamKey paramKey, Object queryResult, SessionImplementor session) {
+        ResultChanges changes = new ResultChanges();
+        changes.remove(queryResult);
+        applyChanges(paramKey, changes, session);
+    }
+
+    /**
+     * Applies all changes to cached result with single region update
+     */
+    void applyChanges(ParamKey paramKey, ResultChanges changes, SessionImplementor session) {
+        ResultUpdate update = prepareUpdate(paramKey, changes, session);
+        if (update != null) {
+            applyUpdate(update);
+        }
+    }
+
+    /**
+     * Disassembles changed rows while session is still available
+     *
+     * @return update or <code>null</code> if there is no cached result for the parameters
+     */
+    ResultUpdate prepareUpdate(ParamKey paramKey, ResultChanges changes, SessionImplementor session) {
+        if (changes.isEmpty()) {
+            return null;
+        }
+        Map<ParamKey, Boolean> changedKeys = preloadChangedKeys;
+        if (changedKeys != null) {
+            changedKeys.put(paramKey, Boolean.TRUE);
+        }
+        QueryCacheValue entry = findQueryCacheValue(paramKey);
         if (entry == null) {
+            paramKeyIndexes.onRemove(paramKey);
+            return null;
+        }
+        ResultOrder order = resultOrder;
+        if (order != null && !entry.isOrdered()) {
+            // result cached before order registration can't be updated
+            getRegion().evict(entry.getKey());
+            getRegion().evict(paramKey);
+            paramKeyIndexes.onRemove(paramKey);
+            return null;
+        }
+        AggregateChange aggregate = changes.getAggregate();
+        if (aggregate != null) {
+            aggregate.setResultClass(entry.getReturnTypes()[0].getReturnedClass());
+        }
+        List<Object> removedRows = disassemble(entry, changes.getRemovedRows(), session);
+        List<Object> removedValues = changes.getRemovedValues();
+        removedRows.addAll(removedValues);
+        unindexResults(entry.getReturnTypes(), removedValues, paramKey);
+
+        List<Object> queryResults = changes.getAddedRows();
+        List<Object> addedRows = new ArrayList<Object>(queryResults.size());
+        for (int i = 0; i < queryResults.size(); i++) {
+            Object row = disassemble(entry.getReturnTypes(), queryResults.get(i), session);
+            if (changes.isRemovedAfter(i, row)) {
+                continue;
+            }
+            indexResult(entry.getReturnTypes(), row, paramKey);
+            if (order != null) {
+                row = new OrderedRow(order.getSortKey(queryResults.get(i)), row);
+            }
+            addedRows.add(row);
+        }
+        return new ResultUpdate(entry.getKey(), changes.isClear(), removedRows, addedRows, aggregate);
+    }
+
+    /**
+     * Index entries are removed only for deleted rows, other removed rows
+     * stay indexed since they could be added back concurrently
+     */
+    private void unindexResults(Type[] returnTypes, List<Object> removedValues, ParamKey paramKey) {
+        if (resultIndex == null || !isEntityResult(returnTypes)) {
             return;
         }
-        List<Object> cacheable = (List<Object>)getRegion().get(entry.getKey());
-        if (cacheable == null) {
+        String entityName = ((EntityType) returnTypes[0]).getAssociatedEntityName();
+        for (Object value : removedValues) {
+            resultIndex.remove(entityName, value, paramKey);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if deleted entity can be found in cached results by its id
+     */
+    boolean isResultIndexed() {
+        return resultIndex != null;
+    }
+
+    /**
+     * @param id - disassembled entity id
+     * @return keys of cached queries whose entity results may contain the entity
+     */
+    Set<ParamKey> getParamKeys(String entityName, Object id) {
+        return resultIndex.get(entityName, id);
+    }
+
+    /**
+     * @return keys of cached queries matching parameters of command
+     */
+    List<ParamKey> getParamKeys(ParamsCommand command) {
+        if (!command.getRangeParams().isEmpty()) {
+            for (RangeParameter range : command.getRangeParams().keySet()) {
+                rangeIndex.register(range);
+            }
+            return rangeIndex.find(command.getParams(), command.getElementParams(), command.getRangeParams());
+        }
+        if (command.getElementParams().isEmpty()) {
+            return Collections.singletonList(command.getParamKey());
+        }
+        List<ParamKey> result = elementIndex.find(command.getParams(), command.getElementParams());
+        // Hibernate binds single element collection as plain parameter
+        Map<String, Object> params = new HashMap<String, Object>(command.getParams());
+        params.putAll(command.getElementParams());
+        result.add(ParamKey.valueOf(params));
+        return result;
+    }
+
+    void applyUpdate(ResultUpdate update) {
+        statistics.recordUpdate(update.getAddedRows().size(), update.getRemovedRows().size());
+        if (deltaStore != null) {
+            if (update.getAggregate() != null) {
+                // aggregate value can't be expressed as row delta
+                deltaStore.reset(update.getKey());
+                getRegion().evict(update.getKey());
+                return;
+            }
+            deltaStore.update(update.getKey(), update.isClear(), update.getRemovedRows(), update.getAddedRows());
+            if (budget != null) {
+                // cleared result weight is known only after compaction
+                budget.adjust(update.getKey(), update.getAddedRows().size() - update.getRemovedRows().size());
+                budget.evictIfNeeded();
+            }
             return;
         }
-        if (uniqueResult) {
-            Object ts = cacheable.get(0);
-            cacheable.clear();
-            cacheable.add(ts);
+        if (deltaPropagation != null) {
+            applyPropagatedUpdate(update);
+            return;
         }
-        if (entry.getReturnTypes().length == 1) {
-            Serializable cacheObject = entry.getReturnTypes()[0].disassemble(queryResult, session, null);
-            cacheable.add(cacheObject);
-        } else {
-            Serializable[] cacheObject =
-                TypeHelper.disassemble((Object[])queryResult, entry.getReturnTypes(), null, session, null);
-            cacheable.add(cacheObject);
+        if (replaceableRegion != null) {
+            applyOptimisticUpdate(update);
+            return;
+        }
+        ResultList cacheable = (ResultList) getRegion().get(update.getKey());
+        if (cacheable == null || !isApplicable(cacheable, update)) {
+            return;
+        }
+        if (apply(cacheable, update)) {
+            getRegion().put(update.getKey(), cacheable);
+            recordResultSize(update.getKey(), cacheable.rowCount());
         }
-        getRegion().put(entry.getKey(), cacheable);
     }
 
-    public void removeResult(Map<String, Object> queryParams, Object queryResult, SessionImplementor session) {
-        QueryCacheValue entry = getQueryCacheTrasformed(queryParams);
-        if (entry == null) {
+    private void recordResultSize(QueryKey key, int size) {
+        statistics.recordResultSize(size);
+        if (budget != null) {
+            budget.update(key, size);
+            budget.evictIfNeeded();
+        }
+    }
+
+    /**
+     * Replicates only changed rows, each node applies them to its own copy of cached result.
+     * Aggregate value replaces the current one only if it's still current,
+     * so concurrent aggregate updates can't overwrite each other.
+     */
+    private void applyPropagatedUpdate(ResultUpdate update) {
+        ResultList cacheable = getResultList(update.getKey());
+        if (cacheable == null) {
             return;
         }
-        List<Object> cacheList = (List<Object>)getRegion().get(entry.getKey());
-        if (cacheList == null) {
+        if (!isMaintained(update.getKey(), cacheable)) {
+            // drained or unordered result is reloaded, so other nodes shouldn't keep their copies
+            deltaPropagation.remove(update.getKey());
             return;
         }
-        if (entry.getReturnTypes().length == 1) {
-            Serializable deletedObject = entry.getReturnTypes()[0].disassemble(queryResult, session, null);
-            cacheList.remove(deletedObject);
+        if (!isApplicable(cacheable, update) || !isModifiedBy(cacheable, update)) {
+            return;
+        }
+        if (update.getAggregate() != null) {
+            Object current = cacheable.toRowArray()[0];
+            Object value = update.getAggregate().applyTo(current);
+            if (value == null || value.equals(current)) {
+                return;
+            }
+            deltaPropagation.update(update.getKey(), false,
+                    Collections.singletonList(current), Collections.singletonList(value), true);
         } else {
-            Serializable[] deletedObject =
-                TypeHelper.disassemble((Object[])queryResult, entry.getReturnTypes(), null, session, null);
-            for (Iterator<Object> iterator = cacheList.iterator(); iterator.hasNext();) {
-                Serializable[] object = (Serializable[]) iterator.next();
-                if (Arrays.equals(object, deletedObject)) {
-                    iterator.remove();
-                }
+            deltaPropagation.update(update.getKey(), update.isClear(),
+                    update.getRemovedRows(), update.getAddedRows(), false);
+        }
+        recordResultSize(update.getKey(), cacheable.rowCount());
+    }
+
+    /**
+     * Updates copy of cached result and stores it only if cached result
+     * hasn't been changed meanwhile, retries with random backoff otherwise
+     */
+    private void applyOptimisticUpdate(ResultUpdate update) {
+        for (int attempt = 0; attempt < optimisticMaxAttempts; attempt++) {
+            ResultList current = (ResultList) getRegion().get(update.getKey());
+            if (current == null || !isApplicable(current, update)
+                    || !isModifiedBy(current, update)) {
+                return;
+            }
+            ResultList updated = current.copy();
+            if (!apply(updated, update)) {
+                return;
+            }
+            updated.incrementVersion();
+            if (replaceableRegion.replace(update.getKey(), current.replaceToken(), updated)) {
+                recordResultSize(update.getKey(), updated.rowCount());
+                return;
+            }
+            long maxPause = Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << attempt);
+            LockSupport.parkNanos((long) (Math.random() * maxPause));
+        }
+        log.warn("Can't update result in {} region after {} attempts, result evicted",
+                    getRegion().getName(), optimisticMaxAttempts);
+        getRegion().evict(update.getKey());
+    }
+
+    /**
+     * Evicts aggregate result which can't be computed without reload
+     *
+     * @return <code>false</code> if result has been evicted
+     */
+    private boolean isApplicable(ResultList cacheable, ResultUpdate update) {
+        AggregateChange aggregate = update.getAggregate();
+        if (aggregate == null) {
+            return true;
+        }
+        if (cacheable.rowCount() == 1
+                && aggregate.isApplicableTo(cacheable.toRowArray()[0])) {
+            return true;
+        }
+        getRegion().evict(update.getKey());
+        return false;
+    }
+
+    /**
+     * Checks removal-only update without copying the result
+     */
+    private boolean isModifiedBy(ResultList cacheable, ResultUpdate update) {
+        if (update.isClear() || !update.getAddedRows().isEmpty()
+                || update.getAggregate() != null) {
+            return true;
+        }
+        for (Object row : update.getRemovedRows()) {
+            if (cacheable.containsRow(row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean apply(ResultList cacheable, ResultUpdate update) {
+        if (update.getAggregate() != null) {
+            Object current = cacheable.toRowArray()[0];
+            Object value = update.getAggregate().applyTo(current);
+            if (value == null || value.equals(current)) {
+                return false;
             }
+            cacheable.clearRows();
+            cacheable.addRow(value);
+            return true;
+        }
+        return cacheable.applyRows(update.isClear(), update.getRemovedRows(), update.getAddedRows());
+    }
+
+    /**
+     * @return <code>true</code> if result updates are atomic,
+     *          so there is no need to lock them
+     */
+    boolean isOptimisticUpdates() {
+        return replaceableRegion != null && deltaStore == null;
+    }
+
+    private List<Object> disassemble(QueryCacheValue entry, List<Object> queryResults, SessionImplementor session) {
+        List<Object> result = new ArrayList<Object>(queryResults.size());
+        for (Object queryResult : queryResults) {
+            result.add(disassemble(entry.getReturnTypes(), queryResult, session));
+        }
+        return result;
+    }
+
+    private Object disassemble(Type[] returnTypes, Object queryResult, SessionImplementor session) {
+        if (returnTypes.length == 1) {
+            return returnTypes[0].disassemble(queryResult, session, null);
+        }
+        return TypeHelper.disassemble((Object[])queryResult, returnTypes, null, session, null);
+    }
+
+    void addEntityListener(QueryCacheEntityListener listener) {
+        entityListeners.add(listener);
+    }
+
+    public DynamicQueryCacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return total weight of results counted by region weight budget,
+     *          <code>0</code> if {@link DynamicQueryCacheSettings#MAX_WEIGHT} isn't set
+     */
+    public long getWeight() {
+        if (budget == null) {
+            return 0;
+        }
+        return budget.getWeight();
+    }
+
+    /**
+     * @return count of queries in local parameter element, range and result indexes
+     */
+    public int getIndexedQueryCount() {
+        Set<ParamKey> result = new HashSet<ParamKey>();
+        elementIndex.addParamKeysTo(result);
+        rangeIndex.addParamKeysTo(result);
+        if (resultIndex != null) {
+            resultIndex.addParamKeysTo(result);
+        }
+        return result.size();
+    }
+
+    void setMBeanName(ObjectName mbeanName) {
+        this.mbeanName = mbeanName;
+    }
+
+    @Override
+    public void clear() throws CacheException {
+        ConcurrentMap<Object, Object> regionCache = ReplaceableRegions.getInfinispanCache(getRegion());
+        if (regionCache != null) {
+            // region invalidation fails on non-transactional cache and leaves region invalid,
+            // so results are cleared from cache directly
+            regionCache.clear();
+        } else {
+            super.clear();
+        }
+        // removed entries aren't notified one by one,
+        // so local state of cleared results is dropped here
+        if (nearCache != null) {
+            nearCache.clear();
+        }
+        if (budget != null) {
+            budget.clear();
+        }
+        elementIndex.clear();
+        rangeIndex.clear();
+        if (resultIndex != null) {
+            resultIndex.clear();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // pending updates are applied before region is destroyed
+        for (QueryCacheEntityListener listener : entityListeners) {
+            listener.shutdown();
+        }
+        if (mbeanName != null) {
+            try {
+                DynamicQueryCacheFactory.unregisterMBean(mbeanName, statistics);
+            } catch (JMException e) {
+                log.debug("Can't unregister statistics MBean " + mbeanName, e);
+            }
+        }
+        if (deltaStore != null) {
+            deltaStore.shutdown();
+        }
+        if (regionListener != null) {
+            regionListener.unregister();
+        }
+        if (queryShapes != null) {
+            queryShapes.unregister();
         }
-        getRegion().put(entry.getKey(), cacheList);
+        super.destroy();
     }
 
 }
@@ -15,25 +15,38 @@
  */
 package com.corundumstudio.hibernate.dsc;
 
-import java.lang.reflect.Field;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.hibernate.HibernateException;
 import org.hibernate.cache.spi.QueryCache;
 import org.hibernate.cache.spi.QueryCacheFactory;
-import org.hibernate.cache.spi.QueryKey;
 import org.hibernate.cache.internal.StandardQueryCache;
 import org.hibernate.cache.spi.UpdateTimestampsCache;
 import org.hibernate.cfg.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DynamicQueryCacheFactory implements QueryCacheFactory {
 
-    // TODO remove when https://hibernate.onjira.com/browse/HHH-5881 will be resolved
-    private final Field positionalParameterField;
+    private static final String MBEAN_DOMAIN = "com.corundumstudio.hibernate.dsc";
+
+    // statistics registered under the name, a region of newer session factory
+    // takes the name over from the region of previous one
+    private static final Map<ObjectName, DynamicQueryCacheStatistics> mbeanOwners =
+                                            new HashMap<ObjectName, DynamicQueryCacheStatistics>();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final NamedParametersAccessor namedParametersAccessor;
 
     public DynamicQueryCacheFactory() throws SecurityException, NoSuchFieldException {
-        positionalParameterField = QueryKey.class.getDeclaredField("namedParameters");
-        positionalParameterField.setAccessible(true);
+        namedParametersAccessor = new NamedParametersAccessor();
     }
 
     @Override
@@ -42,7 +55,46 @@ public class DynamicQueryCacheFactory implements QueryCacheFactory {
         if (regionName == null) {
             return new StandardQueryCache(settings, props, updateTimestampsCache, regionName);
         }
-        return new DynamicQueryCache(settings, props, updateTimestampsCache, regionName, positionalParameterField);
+        DynamicQueryCacheSettings cacheSettings = new DynamicQueryCacheSettings(props, regionName);
+        DynamicQueryCache queryCache = new DynamicQueryCache(settings, props, updateTimestampsCache, regionName,
+                                                                namedParametersAccessor, cacheSettings);
+        if (cacheSettings.isJmxEnabled()) {
+            registerMBean(queryCache, regionName);
+        }
+        return queryCache;
+    }
+
+    private void registerMBean(DynamicQueryCache queryCache, String regionName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEAN_DOMAIN + ":type=DynamicQueryCache,region="
+                                                + ObjectName.quote(regionName));
+            synchronized (mbeanOwners) {
+                // region of previous session factory
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(queryCache.getStatistics(), name);
+                mbeanOwners.put(name, queryCache.getStatistics());
+            }
+            queryCache.setMBeanName(name);
+        } catch (JMException e) {
+            log.warn("Can't register statistics MBean for region: " + regionName, e);
+        }
+    }
+
+    /**
+     * Unregisters MBean only if it still exposes given statistics,
+     * otherwise the name is owned by region of newer session factory.
+     */
+    static void unregisterMBean(ObjectName name, DynamicQueryCacheStatistics statistics) throws JMException {
+        synchronized (mbeanOwners) {
+            if (mbeanOwners.get(name) != statistics) {
+                return;
+            }
+            mbeanOwners.remove(name);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
     }
 
 }
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.Properties;
+
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+/**
+ * Dynamic query cache settings. Each setting can be defined globally,
+ * e.g. <code>hibernate.cache.dsc.read_mode</code>, or per region,
+ * e.g. <code>hibernate.cache.dsc.SimpleEntitySQL.read_mode</code>.
+ * Region setting takes precedence.
+ *
+ */
+public class DynamicQueryCacheSettings {
+
+    public static final String PREFIX = "hibernate.cache.dsc.";
+
+    /**
+     * {@link ReadMode} name, <code>touch</code> by default.
+     * {@link ReadMode#SAMPLED} and {@link ReadMode#NONE} modes require region without maxEntries eviction
+     */
+    public static final String READ_MODE = "read_mode";
+
+    /**
+     * Every N-th cache hit touches QueryCacheValue entry in {@link ReadMode#SAMPLED} mode,
+     * rounded up to power of two. 64 by default
+     */
+    public static final String TOUCH_SAMPLE_RATE = "touch_sample_rate";
+
+    /**
+     * Keep result changes as separate delta entry merged into result list in background.
+     * Reads share merged result unless region stores values as binary,
+     * <code>false</code> by default
+     */
+    public static final String DELTA_MAINTENANCE = "delta_maintenance";
+
+    /**
+     * Number of result changes which triggers delta compaction, 64 by default
+     */
+    public static final String DELTA_COMPACTION_THRESHOLD = "delta_compaction_threshold";
+
+    /**
+     * Keep result rows in hash index: constant time removal, duplicate rows are ignored.
+     * <code>false</code> by default
+     */
+    public static final String INDEXED_RESULTS = "indexed_results";
+
+    /**
+     * Keep single <code>Long</code> or <code>Integer</code> column results, e.g. entity ids,
+     * in sorted primitive array: results are returned in ascending order, duplicates are ignored.
+     * <code>false</code> by default
+     */
+    public static final String PRIMITIVE_RESULTS = "primitive_results";
+
+    /**
+     * Amount of rows kept after limit of ordered result (see {@link ResultOrder}),
+     * they replace removed top rows without result reload. 16 by default
+     */
+    public static final String ORDER_OVERFLOW = "order_overflow";
+
+    /**
+     * Keep local index of entity ids to cached queries with entity results containing them.
+     * Deleted entity is removed from these queries by its id in addition to queries
+     * found by {@link CacheCallback}, so queries cached with its stale parameters are
+     * maintained too. Scalar results aren't indexed. <code>false</code> by default
+     */
+    public static final String RESULT_INDEX = "result_index";
+
+    /**
+     * Apply result changes with atomic conditional replace instead of locks,
+     * if region provides it (see {@link ReplaceableRegion}). <code>false</code> by default
+     */
+    public static final String OPTIMISTIC_UPDATES = "optimistic_updates";
+
+    /**
+     * Max attempts of optimistic result update, result is evicted after that. 16 by default
+     */
+    public static final String OPTIMISTIC_MAX_ATTEMPTS = "optimistic_max_attempts";
+
+    /**
+     * Amount of threads caching results in {@link DynamicQueryCache#preload},
+     * amount of available processors by default
+     */
+    public static final String PRELOAD_THREADS = "preload_threads";
+
+    /**
+     * Min amount of rows cached by single preload task, 1000 by default
+     */
+    public static final String PRELOAD_BATCH_SIZE = "preload_batch_size";
+
+    /**
+     * Max amount of rows cached by {@link DynamicQueryCache#preload}, results
+     * after the limit are loaded on demand. <code>0</code> (unlimited) by default
+     */
+    public static final String PRELOAD_MAX_ROWS = "preload_max_rows";
+
+    /**
+     * Max total weight of region results, result weight is its row count plus one.
+     * Least recently used results over the limit are evicted along with their parameter entries,
+     * so the limit should be used instead of entry count based eviction of the underlying cache.
+     * Limit is node-local: results replicated from other nodes aren't weighed and evicted
+     * results stay on other nodes, so replicated region still needs entry count based eviction.
+     * <code>0</code> (unlimited) by default
+     */
+    public static final String MAX_WEIGHT = "max_weight";
+
+    /**
+     * Max amount of parameter entries held in local near cache, so entity events
+     * for parameters without cached query don't cost region lookup.
+     * Near cache is invalidated by region entry events, so it requires Infinispan region
+     * in local, replicated or invalidation mode. <code>0</code> (disabled) by default
+     */
+    public static final String NEAR_CACHE_SIZE = "near_cache_size";
+
+    /**
+     * Amount of parameter entries held by presence filter with
+     * {@link #PRESENCE_FILTER_FPP} false positive rate, filter lets entity events
+     * for parameters without cached query skip region lookup. Filter takes about
+     * <code>size * -ln(fpp) / ln(2)^2 / 2</code> bytes and is maintained
+     * by region entry events, so it requires Infinispan region.
+     * <code>0</code> (disabled) by default
+     */
+    public static final String PRESENCE_FILTER_SIZE = "presence_filter_size";
+
+    /**
+     * False positive rate of presence filter, <code>0.01</code> by default
+     */
+    public static final String PRESENCE_FILTER_FPP = "presence_filter_fpp";
+
+    /**
+     * Replicate only changed rows of cached result instead of whole result,
+     * each node applies them to its own copy. Requires Infinispan region with
+     * storeAsBinary disabled, ignored if {@link #DELTA_MAINTENANCE} is enabled.
+     * <code>false</code> by default
+     */
+    public static final String DELTA_PROPAGATION = "delta_propagation";
+
+    /**
+     * Register region statistics MBean, <code>true</code> by default
+     */
+    public static final String JMX_ENABLED = "jmx_enabled";
+
+    private final Properties props;
+    private final String regionName;
+
+    DynamicQueryCacheSettings(Properties props, String regionName) {
+        this.props = props;
+        this.regionName = regionName;
+    }
+
+    ReadMode getReadMode() {
+        String value = getString(READ_MODE, ReadMode.TOUCH.name());
+        return ReadMode.valueOf(value.trim().toUpperCase());
+    }
+
+    int getTouchSampleRate() {
+        return getInt(TOUCH_SAMPLE_RATE, 64);
+    }
+
+    boolean isDeltaMaintenance() {
+        return getBoolean(DELTA_MAINTENANCE, false);
+    }
+
+    int getDeltaCompactionThreshold() {
+        return getInt(DELTA_COMPACTION_THRESHOLD, 64);
+    }
+
+    boolean isIndexedResults() {
+        return getBoolean(INDEXED_RESULTS, false);
+    }
+
+    boolean isPrimitiveResults() {
+        return getBoolean(PRIMITIVE_RESULTS, false);
+    }
+
+    int getOrderOverflow() {
+        return getInt(ORDER_OVERFLOW, 16);
+    }
+
+    boolean isResultIndex() {
+        return getBoolean(RESULT_INDEX, false);
+    }
+
+    boolean isOptimisticUpdates() {
+        return getBoolean(OPTIMISTIC_UPDATES, false);
+    }
+
+    int getOptimisticMaxAttempts() {
+        return getInt(OPTIMISTIC_MAX_ATTEMPTS, 16);
+    }
+
+    int getPreloadThreads() {
+        return getInt(PRELOAD_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    int getPreloadBatchSize() {
+        return getInt(PRELOAD_BATCH_SIZE, 1000);
+    }
+
+    int getPreloadMaxRows() {
+        return getInt(PRELOAD_MAX_ROWS, 0);
+    }
+
+    long getMaxWeight() {
+        return getLong(MAX_WEIGHT, 0);
+    }
+
+    int getNearCacheSize() {
+        return getInt(NEAR_CACHE_SIZE, 0);
+    }
+
+    int getPresenceFilterKeys() {
+        return getInt(PRESENCE_FILTER_SIZE, 0);
+    }
+
+    double getPresenceFilterFpp() {
+        return Double.parseDouble(getString(PRESENCE_FILTER_FPP, "0.01").trim());
+    }
+
+    boolean isDeltaPropagation() {
+        return getBoolean(DELTA_PROPAGATION, false);
+    }
+
+    boolean isJmxEnabled() {
+        return getBoolean(JMX_ENABLED, true);
+    }
+
+    String getString(String name, String defaultValue) {
+        String value = ConfigurationHelper.getString(PREFIX + regionName + "." + name, props);
+        if (value == null) {
+            value = ConfigurationHelper.getString(PREFIX + name, props, defaultValue);
+        }
+        return value;
+    }
+
+    int getInt(String name, int defaultValue) {
+        return Integer.parseInt(getString(name, String.valueOf(defaultValue)).trim());
+    }
+
+    long getLong(String name, long defaultValue) {
+        return Long.parseLong(getString(name, String.valueOf(defaultValue)).trim());
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(name, String.valueOf(defaultValue)).trim());
+    }
+
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.corundumstudio.concurrent.StripedCounter;
+
+public class DynamicQueryCacheStatistics implements DynamicQueryCacheStatisticsMBean {
+
+    // bucket N holds sizes in [2^(N-1), 2^N), the last one holds all bigger sizes
+    private static final int RESULT_SIZE_BUCKETS = 24;
+
+    private final String regionName;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter vanishedValues = new StripedCounter();
+    private final StripedCounter updates = new StripedCounter();
+    private final StripedCounter addedRows = new StripedCounter();
+    private final StripedCounter removedRows = new StripedCounter();
+    private final StripedCounter lockWaits = new StripedCounter();
+    private final StripedCounter lockWaitNanos = new StripedCounter();
+    private final StripedCounter events = new StripedCounter();
+    private final StripedCounter eventNanos = new StripedCounter();
+    private final StripedCounter preloadedResults = new StripedCounter();
+    private final StripedCounter preloadedRows = new StripedCounter();
+    private final StripedCounter skippedPreloads = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+    private final StripedCounter evictedRows = new StripedCounter();
+    private final StripedCounter nearCacheHits = new StripedCounter();
+    private final StripedCounter filteredLookups = new StripedCounter();
+    private final StripedCounter[] resultSizes = new StripedCounter[RESULT_SIZE_BUCKETS];
+
+    DynamicQueryCacheStatistics(String regionName) {
+        this.regionName = regionName;
+        for (int i = 0; i < resultSizes.length; i++) {
+            resultSizes[i] = new StripedCounter();
+        }
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordVanishedValue() {
+        vanishedValues.increment();
+    }
+
+    void recordUpdate(int added, int removed) {
+        updates.increment();
+        addedRows.add(added);
+        removedRows.add(removed);
+    }
+
+    void recordLockWait(long nanos) {
+        lockWaits.increment();
+        lockWaitNanos.add(nanos);
+    }
+
+    void recordEvent(long nanos) {
+        events.increment();
+        eventNanos.add(nanos);
+    }
+
+    void recordPreload(int rows) {
+        preloadedResults.increment();
+        preloadedRows.add(rows);
+    }
+
+    void recordSkippedPreload() {
+        skippedPreloads.increment();
+    }
+
+    void recordEviction(int rows) {
+        evictions.increment();
+        evictedRows.add(rows);
+    }
+
+    void recordNearCacheHit() {
+        nearCacheHits.increment();
+    }
+
+    void recordFilteredLookup() {
+        filteredLookups.increment();
+    }
+
+    void recordResultSize(int size) {
+        int bucket = Math.min(RESULT_SIZE_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(size));
+        resultSizes[bucket].increment();
+    }
+
+    @Override
+    public String getRegionName() {
+        return regionName;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hitCount / total;
+    }
+
+    @Override
+    public long getVanishedValueCount() {
+        return vanishedValues.sum();
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getAddedRowCount() {
+        return addedRows.sum();
+    }
+
+    @Override
+    public long getRemovedRowCount() {
+        return removedRows.sum();
+    }
+
+    @Override
+    public long getLockWaitCount() {
+        return lockWaits.sum();
+    }
+
+    @Override
+    public double getAverageLockWaitMicros() {
+        return averageMicros(lockWaitNanos.sum(), getLockWaitCount());
+    }
+
+    @Override
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    @Override
+    public double getAverageEventMicros() {
+        return averageMicros(eventNanos.sum(), getEventCount());
+    }
+
+    private double averageMicros(long nanos, long count) {
+        if (count == 0) {
+            return 0;
+        }
+        return nanos / 1000.0 / count;
+    }
+
+    @Override
+    public long getPreloadedResultCount() {
+        return preloadedResults.sum();
+    }
+
+    @Override
+    public long getPreloadedRowCount() {
+        return preloadedRows.sum();
+    }
+
+    @Override
+    public long getSkippedPreloadCount() {
+        return skippedPreloads.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getEvictedRowCount() {
+        return evictedRows.sum();
+    }
+
+    @Override
+    public long getNearCacheHitCount() {
+        return nearCacheHits.sum();
+    }
+
+    @Override
+    public long getFilteredLookupCount() {
+        return filteredLookups.sum();
+    }
+
+    @Override
+    public String[] getResultSizeHistogram() {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < resultSizes.length; i++) {
+            long count = resultSizes[i].sum();
+            if (count == 0) {
+                continue;
+            }
+            String range;
+            if (i == 0) {
+                range = "0";
+            } else if (i == resultSizes.length - 1) {
+                range = (1 << (i - 1)) + "+";
+            } else if (i == 1) {
+                range = "1";
+            } else {
+                range = (1 << (i - 1)) + "-" + ((1 << i) - 1);
+            }
+            result.add(range + ": " + count);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public void clear() {
+        hits.reset();
+        misses.reset();
+        vanishedValues.reset();
+        updates.reset();
+        addedRows.reset();
+        removedRows.reset();
+        lockWaits.reset();
+        lockWaitNanos.reset();
+        events.reset();
+        eventNanos.reset();
+        preloadedResults.reset();
+        preloadedRows.reset();
+        skippedPreloads.reset();
+        evictions.reset();
+        evictedRows.reset();
+        nearCacheHits.reset();
+        filteredLookups.reset();
+        for (StripedCounter counter : resultSizes) {
+            counter.reset();
+        }
+    }
+
+}
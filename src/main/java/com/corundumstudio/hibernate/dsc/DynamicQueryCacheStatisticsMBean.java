@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Statistics of dynamic query cache region,
+ * registered as <code>com.corundumstudio.hibernate.dsc:type=DynamicQueryCache,region=...</code>
+ *
+ */
+public interface DynamicQueryCacheStatisticsMBean {
+
+    String getRegionName();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRatio();
+
+    /**
+     * @return amount of hits when QueryCacheValue entry has gone from cache before its result
+     */
+    long getVanishedValueCount();
+
+    /**
+     * @return amount of cached result updates made by entity events
+     */
+    long getUpdateCount();
+
+    long getAddedRowCount();
+
+    long getRemovedRowCount();
+
+    long getLockWaitCount();
+
+    double getAverageLockWaitMicros();
+
+    /**
+     * @return amount of entity events processed for the region
+     */
+    long getEventCount();
+
+    double getAverageEventMicros();
+
+    /**
+     * @return amount of results cached by preload, it grows while preload is in progress
+     */
+    long getPreloadedResultCount();
+
+    long getPreloadedRowCount();
+
+    /**
+     * @return amount of preloaded results which haven't been cached
+     *          since they were changed during preload
+     */
+    long getSkippedPreloadCount();
+
+    /**
+     * @return amount of results evicted to fit region weight budget
+     * @see DynamicQueryCacheSettings#MAX_WEIGHT
+     */
+    long getEvictionCount();
+
+    long getEvictedRowCount();
+
+    /**
+     * @return amount of entity event lookups answered by near cache
+     * @see DynamicQueryCacheSettings#NEAR_CACHE_SIZE
+     */
+    long getNearCacheHitCount();
+
+    /**
+     * @return amount of entity event lookups skipped by presence filter
+     * @see DynamicQueryCacheSettings#PRESENCE_FILTER_SIZE
+     */
+    long getFilteredLookupCount();
+
+    /**
+     * @return amount of stored results per size range, e.g. <code>"4-7: 12"</code>
+     */
+    String[] getResultSizeHistogram();
+
+    void clear();
+
+}
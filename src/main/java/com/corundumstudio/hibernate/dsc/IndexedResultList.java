@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result list backed by hash index of rows. Keeps rows in order of their addition,
+ * removes row in constant time and ignores duplicate rows.
+ *
+ */
+class IndexedResultList extends ResultList {
+
+    private static final long serialVersionUID = 3514307307869466113L;
+
+    // row key -> row, serialized as plain rows
+    private Map<Object, Object> rows;
+
+    IndexedResultList(Long timestamp, int capacity) {
+        super(timestamp);
+        rows = new LinkedHashMap<Object, Object>(Math.max(16, (int) (capacity / .75f) + 1));
+    }
+
+    /**
+     * Used by deserialization
+     */
+    public IndexedResultList() {
+    }
+
+    @Override
+    synchronized boolean addRow(Object row) {
+        Object key = RowKey.of(row);
+        if (rows.containsKey(key)) {
+            return false;
+        }
+        rows.put(key, row);
+        return true;
+    }
+
+    @Override
+    synchronized boolean removeRow(Object row) {
+        return rows.remove(RowKey.of(row)) != null;
+    }
+
+    @Override
+    synchronized boolean containsRow(Object row) {
+        return rows.containsKey(RowKey.of(row));
+    }
+
+    @Override
+    synchronized void clearRows() {
+        rows.clear();
+    }
+
+    @Override
+    synchronized int rowCount() {
+        return rows.size();
+    }
+
+    @Override
+    synchronized Object[] toRowArray() {
+        return rows.values().toArray();
+    }
+
+    @Override
+    synchronized ResultList copy() {
+        IndexedResultList copy = new IndexedResultList(getTimestamp(), rows.size() + 1);
+        copy.rows.putAll(rows);
+        return copy.copyState(this);
+    }
+
+    @Override
+    void writeRows(ObjectOutput out) throws IOException {
+        CompactSerializer.writeVarLong(out, rows.size());
+        for (Object row : rows.values()) {
+            CompactSerializer.writeValue(out, row);
+        }
+    }
+
+    @Override
+    void readRows(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = (int) CompactSerializer.readVarLong(in);
+        rows = new LinkedHashMap<Object, Object>(Math.max(16, (int) (size / .75f) + 1));
+        for (int i = 0; i < size; i++) {
+            Object row = CompactSerializer.readValue(in);
+            rows.put(RowKey.of(row), row);
+        }
+    }
+
+}
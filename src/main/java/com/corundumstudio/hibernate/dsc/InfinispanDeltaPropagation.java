@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.cache.spi.QueryKey;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+
+/**
+ * Stores results as {@link DeltaAwareResult} and replicates their changes
+ * as {@link ResultListDelta}. Loaded only if region is Infinispan one,
+ * since hibernate-infinispan is optional dependency.
+ *
+ */
+class InfinispanDeltaPropagation {
+
+    // same flags as region put, so update doesn't wait for concurrent one
+    private final AdvancedCache<Object, Object> cache;
+    private final AdvancedCache<Object, Object> removeCache;
+
+    private InfinispanDeltaPropagation(AdvancedCache<Object, Object> cache, AdvancedCache<Object, Object> removeCache) {
+        this.cache = cache;
+        this.removeCache = removeCache;
+    }
+
+    /**
+     * Delta is merged only with deserialized value, so region shouldn't store values as binary
+     *
+     * @return <code>null</code> if region cache doesn't support delta propagation
+     */
+    static InfinispanDeltaPropagation create(ConcurrentMap<Object, Object> regionCache) {
+        if (!(regionCache instanceof Cache)) {
+            return null;
+        }
+        Cache<Object, Object> cache = (Cache<Object, Object>) regionCache;
+        if (cache.getCacheConfiguration().storeAsBinary().enabled()) {
+            return null;
+        }
+        AdvancedCache<Object, Object> updateCache =
+                InfinispanReplaceableRegion.withPutFlags(cache, Flag.SKIP_REMOTE_LOOKUP, Flag.FAIL_SILENTLY);
+        return new InfinispanDeltaPropagation(updateCache, cache.getAdvancedCache().withFlags(Flag.SKIP_REMOTE_LOOKUP));
+    }
+
+    Object wrap(ResultList result) {
+        return new DeltaAwareResult(result);
+    }
+
+    /**
+     * @param strict - result is reloaded if any of removed rows isn't found
+     */
+    void update(QueryKey key, boolean clear, List<Object> removedRows, List<Object> addedRows, boolean strict) {
+        Object previous = cache.put(key, new ResultListDelta(null, clear, removedRows, addedRows, strict));
+        if (previous == null) {
+            // entry is locked by concurrent update or has gone, so the change
+            // could be lost and result is removed to be reloaded on every node
+            remove(key);
+        }
+    }
+
+    /**
+     * Removes result on every node, so it's reloaded on next query
+     */
+    void remove(QueryKey key) {
+        removeCache.remove(key);
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap;
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap.ReferenceType;
+import org.infinispan.Cache;
+import org.infinispan.marshall.AdvancedExternalizer;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+
+/**
+ * Region-scoped table of {@link QueryShape}s by their ids, used only if
+ * {@link QueryCacheValueExternalizer} is registered in cache manager.
+ * Shape is put to the region under {@link QueryShapeKey} before the first value
+ * referencing it, so other nodes get the shape before the value. Shapes are softly
+ * referenced by the table, so they are known after local eviction of their entries
+ * until memory is short. Shape dropped from the table is read from the region again,
+ * it's put there by the next value of the shape. Loaded only if region is Infinispan one, since
+ * hibernate-infinispan is optional dependency.
+ *
+ */
+@Listener
+public class InfinispanQueryShapes {
+
+    private final Cache<Object, Object> cache;
+    private final ConcurrentMap<Long, QueryShape> shapes =
+                        new ConcurrentReferenceHashMap<Long, QueryShape>(16, ReferenceType.STRONG, ReferenceType.SOFT);
+
+    private InfinispanQueryShapes(Cache<Object, Object> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return registered table or <code>null</code> if region cache isn't Infinispan one
+     *          or values are written without {@link QueryCacheValueExternalizer}
+     */
+    static InfinispanQueryShapes register(ConcurrentMap<Object, Object> regionCache) {
+        if (!(regionCache instanceof Cache)) {
+            return null;
+        }
+        Cache<Object, Object> cache = (Cache<Object, Object>) regionCache;
+        for (AdvancedExternalizer<?> externalizer : cache.getCacheManager().getCacheManagerConfiguration()
+                                                        .serialization().advancedExternalizers().values()) {
+            if (externalizer instanceof QueryCacheValueExternalizer) {
+                InfinispanQueryShapes queryShapes = new InfinispanQueryShapes(cache);
+                cache.addListener(queryShapes);
+                return queryShapes;
+            }
+        }
+        return null;
+    }
+
+    void unregister() {
+        cache.removeListener(this);
+    }
+
+    /**
+     * Puts shape of the value to the region if it's absent there,
+     * should be called before the value is put
+     */
+    void publish(QueryCacheValue value) {
+        QueryShape shape = value.getShape();
+        shapes.putIfAbsent(shape.getId(), shape);
+        QueryShapeKey key = new QueryShapeKey(shape.getId());
+        // put again after local eviction or region clear
+        if (!cache.containsKey(key)) {
+            cache.put(key, shape);
+        }
+    }
+
+    /**
+     * @return <code>null</code> if shape has been evicted before this node got it
+     */
+    QueryShape get(long id) {
+        QueryShape shape = shapes.get(id);
+        if (shape != null) {
+            return shape;
+        }
+        Object value = cache.get(new QueryShapeKey(id));
+        if (!(value instanceof QueryShape)) {
+            return null;
+        }
+        shape = (QueryShape) value;
+        QueryShape current = shapes.putIfAbsent(id, shape);
+        if (current != null) {
+            return current;
+        }
+        return shape;
+    }
+
+    @CacheEntryModified
+    public void onModify(CacheEntryModifiedEvent<Object, Object> event) {
+        if (!event.isPre() && event.getKey() instanceof QueryShapeKey
+                && event.getValue() instanceof QueryShape) {
+            shapes.putIfAbsent(((QueryShapeKey) event.getKey()).getId(), (QueryShape) event.getValue());
+        }
+    }
+
+}
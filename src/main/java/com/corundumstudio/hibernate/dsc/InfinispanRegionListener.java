@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntriesEvicted;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntriesEvictedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryInvalidatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+
+/**
+ * Tracks local and replicated changes of Infinispan region {@link ParamKey} entries
+ * to invalidate {@link ParamKeyNearCache}, maintain {@link ParamKeyFilter} and
+ * local indexes of cached queries. Loaded only if region is Infinispan one,
+ * since hibernate-infinispan is optional dependency.
+ *
+ */
+@Listener
+public class InfinispanRegionListener {
+
+    private final Cache<Object, Object> cache;
+    // null if disabled
+    private final ParamKeyNearCache nearCache;
+    private final ParamKeyFilter filter;
+    private final ParamKeyListener keyListener;
+
+    private InfinispanRegionListener(Cache<Object, Object> cache, ParamKeyNearCache nearCache,
+                                        ParamKeyFilter filter, ParamKeyListener keyListener) {
+        this.cache = cache;
+        this.nearCache = nearCache;
+        this.filter = filter;
+        this.keyListener = keyListener;
+    }
+
+    /**
+     * @return registered listener or <code>null</code> if region cache isn't Infinispan one
+     */
+    static InfinispanRegionListener register(ConcurrentMap<Object, Object> regionCache,
+                                    ParamKeyNearCache nearCache, ParamKeyFilter filter, ParamKeyListener keyListener) {
+        if (!(regionCache instanceof Cache)) {
+            return null;
+        }
+        InfinispanRegionListener listener = new InfinispanRegionListener((Cache<Object, Object>) regionCache,
+                                                                                nearCache, filter, keyListener);
+        listener.cache.addListener(listener);
+        return listener;
+    }
+
+    /**
+     * @return <code>true</code> if entries cached by other nodes
+     *          may be stored and notified only on their owners
+     */
+    boolean isDistributed() {
+        return cache.getConfiguration().getCacheMode().isDistributed();
+    }
+
+    void unregister() {
+        cache.removeListener(this);
+    }
+
+    private void invalidate(Object key) {
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+    }
+
+    @CacheEntryCreated
+    public void onCreate(CacheEntryCreatedEvent<Object, Object> event) {
+        Object key = event.getKey();
+        if (!(key instanceof ParamKey)) {
+            return;
+        }
+        // filter is updated before the entry becomes visible
+        if (event.isPre() && filter != null) {
+            filter.add(key);
+        }
+        if (!event.isPre()) {
+            keyListener.onAdd((ParamKey) key);
+        }
+        invalidate(key);
+    }
+
+    @CacheEntryModified
+    public void onModify(CacheEntryModifiedEvent<Object, Object> event) {
+        if (event.getKey() instanceof ParamKey) {
+            invalidate(event.getKey());
+        }
+    }
+
+    @CacheEntryRemoved
+    public void onRemove(CacheEntryRemovedEvent<Object, Object> event) {
+        onRemove(event.getKey(), event.isPre(), event.getValue());
+    }
+
+    @CacheEntryInvalidated
+    public void onInvalidate(CacheEntryInvalidatedEvent<Object, Object> event) {
+        onRemove(event.getKey(), event.isPre(), event.getValue());
+    }
+
+    private void onRemove(Object key, boolean pre, Object value) {
+        if (!(key instanceof ParamKey)) {
+            return;
+        }
+        // only pre event has the value which tells that entry existed
+        if (pre && value != null && filter != null) {
+            filter.remove(key);
+        }
+        if (!pre) {
+            keyListener.onRemove((ParamKey) key);
+        }
+        invalidate(key);
+    }
+
+    @CacheEntriesEvicted
+    public void onEviction(CacheEntriesEvictedEvent<Object, Object> event) {
+        for (Map.Entry<Object, Object> entry : event.getEntries().entrySet()) {
+            if (entry.getKey() instanceof ParamKey) {
+                if (filter != null && entry.getValue() != null) {
+                    filter.remove(entry.getKey());
+                }
+                keyListener.onRemove((ParamKey) entry.getKey());
+                invalidate(entry.getKey());
+            }
+        }
+    }
+
+}
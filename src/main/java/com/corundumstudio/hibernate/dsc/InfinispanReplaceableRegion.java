@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.config.Configuration.CacheMode;
+import org.infinispan.context.Flag;
+import org.infinispan.util.concurrent.TimeoutException;
+
+/**
+ * Conditional replace of Infinispan region. Result is replaced with the same flags
+ * as region put, so replace doesn't wait for concurrent update of the entry
+ * and invalidation mode region isn't invalidated on other nodes.
+ * Loaded only if region is Infinispan one, since hibernate-infinispan is optional dependency.
+ *
+ */
+class InfinispanReplaceableRegion implements ReplaceableRegion {
+
+    private final ConcurrentMap<Object, Object> cache;
+    private final boolean binaryValues;
+
+    private InfinispanReplaceableRegion(ConcurrentMap<Object, Object> cache, boolean binaryValues) {
+        this.cache = cache;
+        this.binaryValues = binaryValues;
+    }
+
+    static ReplaceableRegion create(ConcurrentMap<Object, Object> regionCache) {
+        if (!(regionCache instanceof Cache)) {
+            return null;
+        }
+        Cache<Object, Object> cache = (Cache<Object, Object>) regionCache;
+        return new InfinispanReplaceableRegion(withPutFlags(cache), isStoreValuesAsBinary(cache));
+    }
+
+    /**
+     * Values stored as binary are compared by serialized form instead of equals,
+     * and every read returns new instance
+     */
+    static boolean isStoreValuesAsBinary(ConcurrentMap<Object, Object> regionCache) {
+        if (!(regionCache instanceof Cache)) {
+            return false;
+        }
+        Cache<Object, Object> cache = (Cache<Object, Object>) regionCache;
+        return cache.getCacheConfiguration().storeAsBinary().enabled()
+                && cache.getCacheConfiguration().storeAsBinary().storeValuesAsBinary();
+    }
+
+    /**
+     * @return region cache with flags of region put and given ones
+     */
+    static AdvancedCache<Object, Object> withPutFlags(Cache<Object, Object> cache, Flag... flags) {
+        Flag[] putFlags;
+        CacheMode cacheMode = cache.getConfiguration().getCacheMode();
+        if (cacheMode.isClustered() && cacheMode.isInvalidation()) {
+            putFlags = new Flag[] {Flag.ZERO_LOCK_ACQUISITION_TIMEOUT, Flag.CACHE_MODE_LOCAL};
+        } else {
+            putFlags = new Flag[] {Flag.ZERO_LOCK_ACQUISITION_TIMEOUT};
+        }
+        Flag[] result = new Flag[putFlags.length + flags.length];
+        System.arraycopy(putFlags, 0, result, 0, putFlags.length);
+        System.arraycopy(flags, 0, result, putFlags.length, flags.length);
+        return cache.getAdvancedCache().withFlags(result);
+    }
+
+    @Override
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        if (oldValue instanceof ResultList.ReplaceToken) {
+            ResultList.ReplaceToken token = (ResultList.ReplaceToken) oldValue;
+            // token is compared explicitly, so stale result isn't sent to replace
+            if (!token.equals(cache.get(key))) {
+                return false;
+            }
+            // serialized result contains the token state, so it's compared instead
+            if (binaryValues) {
+                oldValue = token.getResult();
+            }
+        }
+        try {
+            return cache.replace(key, oldValue, newValue);
+        } catch (TimeoutException e) {
+            // entry is locked by concurrent update
+            return false;
+        }
+    }
+
+}
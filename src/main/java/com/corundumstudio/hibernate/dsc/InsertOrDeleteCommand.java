@@ -22,6 +22,7 @@ public class InsertOrDeleteCommand extends ParamsCommand {
     private Object result;
     private boolean addResult;
     private boolean uniqueResult;
+    private AggregateFunction aggregateFunction;
 
     void setResult(Object value) {
         result = value;
@@ -42,6 +43,22 @@ public class InsertOrDeleteCommand extends ParamsCommand {
         uniqueResult = true;
     }
 
+    /**
+     * Cached result is a single aggregate value, e.g. <code>SELECT COUNT(*) ...</code>,
+     * it's changed by entity value instead of result rows
+     *
+     * @param function - aggregate function of query
+     * @param value - entity value aggregated by query, not used by {@link AggregateFunction#COUNT}
+     */
+    public void setAggregate(AggregateFunction function, Object value) {
+        aggregateFunction = function;
+        result = value;
+    }
+
+    AggregateFunction getAggregateFunction() {
+        return aggregateFunction;
+    }
+
     Object getResult() {
         return result;
     }
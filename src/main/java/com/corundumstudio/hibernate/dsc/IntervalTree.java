@@ -0,0 +1,298 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Interval tree based on AVL tree ordered by interval lower bound.
+ * Each node keeps max upper bound of its subtree, so intervals
+ * containing a point are found in logarithmic time plus amount of found intervals.
+ * <code>null</code> bound means unbounded interval side.
+ *
+ * @param <V> - interval value
+ */
+class IntervalTree<V> {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<V, Node<V>> nodes = new HashMap<V, Node<V>>();
+    private final boolean lowInclusive;
+    private final boolean highInclusive;
+    private Node<V> root;
+    private long sequence;
+
+    IntervalTree(boolean lowInclusive, boolean highInclusive) {
+        this.lowInclusive = lowInclusive;
+        this.highInclusive = highInclusive;
+    }
+
+    boolean contains(V value) {
+        lock.readLock().lock();
+        try {
+            return nodes.containsKey(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void add(V value, Comparable<Object> low, Comparable<Object> high) {
+        lock.writeLock().lock();
+        try {
+            if (nodes.containsKey(value)) {
+                return;
+            }
+            Node<V> node = new Node<V>(value, low, high, sequence++);
+            nodes.put(value, node);
+            root = insert(root, node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(V value) {
+        lock.writeLock().lock();
+        try {
+            Node<V> node = nodes.remove(value);
+            if (node != null) {
+                root = delete(root, node);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            nodes.clear();
+            root = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    List<V> values() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<V>(nodes.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return values of intervals containing the point
+     */
+    List<V> find(Comparable<Object> point) {
+        List<V> result = new ArrayList<V>();
+        lock.readLock().lock();
+        try {
+            find(root, point, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private void find(Node<V> node, Comparable<Object> point, List<V> result) {
+        if (node == null || !isHighCovered(node.maxHigh, point)) {
+            return;
+        }
+        find(node.left, point, result);
+        if (isLowCovered(node.low, point) && isHighCovered(node.high, point)) {
+            result.add(node.value);
+        }
+        // lower bounds of right subtree aren't less than node one
+        if (node.low == null || node.low.compareTo(point) <= 0) {
+            find(node.right, point, result);
+        }
+    }
+
+    private boolean isLowCovered(Comparable<Object> low, Comparable<Object> point) {
+        if (low == null) {
+            return true;
+        }
+        int res = low.compareTo(point);
+        return res < 0 || res == 0 && lowInclusive;
+    }
+
+    private boolean isHighCovered(Comparable<Object> high, Comparable<Object> point) {
+        if (high == null) {
+            return true;
+        }
+        int res = high.compareTo(point);
+        return res > 0 || res == 0 && highInclusive;
+    }
+
+    private int compare(Node<V> node, Node<V> other) {
+        if (node.low != other.low) {
+            if (node.low == null) {
+                return -1;
+            }
+            if (other.low == null) {
+                return 1;
+            }
+            int res = node.low.compareTo(other.low);
+            if (res != 0) {
+                return res;
+            }
+        }
+        return node.sequence < other.sequence ? -1 : (node.sequence == other.sequence ? 0 : 1);
+    }
+
+    private Node<V> insert(Node<V> node, Node<V> newNode) {
+        if (node == null) {
+            return newNode;
+        }
+        if (compare(newNode, node) < 0) {
+            node.left = insert(node.left, newNode);
+        } else {
+            node.right = insert(node.right, newNode);
+        }
+        return balance(node);
+    }
+
+    private Node<V> delete(Node<V> node, Node<V> oldNode) {
+        if (node == null) {
+            return null;
+        }
+        int res = compare(oldNode, node);
+        if (res < 0) {
+            node.left = delete(node.left, oldNode);
+        } else if (res > 0) {
+            node.right = delete(node.right, oldNode);
+        } else {
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            Node<V> successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            successor.right = deleteMin(node.right);
+            successor.left = node.left;
+            node = successor;
+        }
+        return balance(node);
+    }
+
+    private Node<V> deleteMin(Node<V> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        node.left = deleteMin(node.left);
+        return balance(node);
+    }
+
+    private Node<V> balance(Node<V> node) {
+        update(node);
+        int factor = height(node.left) - height(node.right);
+        if (factor > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (factor < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private Node<V> rotateRight(Node<V> node) {
+        Node<V> left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private Node<V> rotateLeft(Node<V> node) {
+        Node<V> right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private void update(Node<V> node) {
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        Comparable<Object> maxHigh = node.high;
+        if (node.left != null) {
+            maxHigh = max(maxHigh, node.left.maxHigh);
+        }
+        if (node.right != null) {
+            maxHigh = max(maxHigh, node.right.maxHigh);
+        }
+        node.maxHigh = maxHigh;
+    }
+
+    private Comparable<Object> max(Comparable<Object> high, Comparable<Object> other) {
+        if (high == null || other == null) {
+            return null;
+        }
+        return high.compareTo(other) >= 0 ? high : other;
+    }
+
+    private int height(Node<V> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static class Node<V> {
+
+        final V value;
+        final Comparable<Object> low;
+        final Comparable<Object> high;
+        final long sequence;
+        Node<V> left;
+        Node<V> right;
+        int height = 1;
+        // null if unbounded
+        Comparable<Object> maxHigh;
+
+        Node(V value, Comparable<Object> low, Comparable<Object> high, long sequence) {
+            this.value = value;
+            this.low = low;
+            this.high = high;
+            this.sequence = sequence;
+            this.maxHigh = high;
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * Result list of single <code>Long</code> or <code>Integer</code> column, e.g. entity ids.
+ * Keeps values in sorted primitive array, adds and removes them by binary search
+ * and ignores duplicate values. Serialized as delta-encoded variable length numbers.
+ *
+ */
+class LongResultList extends ResultList {
+
+    private static final long serialVersionUID = 5306815405913349458L;
+
+    // rows are Integer instead of Long
+    private boolean integer;
+    // sorted values, serialized in compact form
+    private long[] values;
+    private int size;
+
+    LongResultList(Long timestamp, boolean integer, int capacity) {
+        super(timestamp);
+        this.integer = integer;
+        this.values = new long[Math.max(capacity, 4)];
+    }
+
+    /**
+     * Used by deserialization
+     */
+    public LongResultList() {
+    }
+
+    /**
+     * @param rows - <code>Long</code> or <code>Integer</code> values in any order
+     */
+    LongResultList(Long timestamp, boolean integer, Object[] rows) {
+        this(timestamp, integer, rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            values[i] = ((Number) rows[i]).longValue();
+        }
+        Arrays.sort(values, 0, rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            if (size == 0 || values[size - 1] != values[i]) {
+                values[size++] = values[i];
+            }
+        }
+    }
+
+    @Override
+    synchronized boolean addRow(Object row) {
+        long value = ((Number) row).longValue();
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == values.length) {
+            long[] newValues = new long[size + (size >> 1) + 1];
+            System.arraycopy(values, 0, newValues, 0, size);
+            values = newValues;
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        return true;
+    }
+
+    @Override
+    synchronized boolean removeRow(Object row) {
+        int index = Arrays.binarySearch(values, 0, size, ((Number) row).longValue());
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    @Override
+    synchronized boolean containsRow(Object row) {
+        return Arrays.binarySearch(values, 0, size, ((Number) row).longValue()) >= 0;
+    }
+
+    @Override
+    synchronized void clearRows() {
+        size = 0;
+    }
+
+    @Override
+    synchronized int rowCount() {
+        return size;
+    }
+
+    @Override
+    synchronized Object[] toRowArray() {
+        Object[] rows = new Object[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = box(values[i]);
+        }
+        return rows;
+    }
+
+    private Object box(long value) {
+        if (integer) {
+            return Integer.valueOf((int) value);
+        }
+        return Long.valueOf(value);
+    }
+
+    @Override
+    synchronized ResultList copy() {
+        LongResultList copy = new LongResultList(getTimestamp(), integer, size + 1);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy.copyState(this);
+    }
+
+    @Override
+    public synchronized Object get(int index) {
+        if (index == 0) {
+            return getTimestamp();
+        }
+        if (index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return box(values[index - 1]);
+    }
+
+    @Override
+    void writeRows(ObjectOutput out) throws IOException {
+        out.writeBoolean(integer);
+        CompactSerializer.writeVarLong(out, size);
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0) {
+                // first value may be negative
+                CompactSerializer.writeVarLong(out, CompactSerializer.zigzag(values[0]));
+            } else {
+                CompactSerializer.writeVarLong(out, values[i] - previous);
+            }
+            previous = values[i];
+        }
+    }
+
+    @Override
+    void readRows(ObjectInput in) throws IOException {
+        integer = in.readBoolean();
+        size = (int) CompactSerializer.readVarLong(in);
+        values = new long[Math.max(size, 4)];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            long value = CompactSerializer.readVarLong(in);
+            if (i == 0) {
+                value = CompactSerializer.unzigzag(value);
+            } else {
+                value += previous;
+            }
+            values[i] = value;
+            previous = value;
+        }
+    }
+
+}
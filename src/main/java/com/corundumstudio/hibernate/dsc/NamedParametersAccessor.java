@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.engine.spi.TypedValue;
+
+/**
+ * Reads {@link QueryKey} named parameters. Field lookup is made once
+ * per {@link DynamicQueryCacheFactory} and shared by all regions.
+ *
+ */
+// TODO remove when https://hibernate.onjira.com/browse/HHH-5881 will be resolved
+class NamedParametersAccessor {
+
+    private final Field namedParametersField;
+
+    NamedParametersAccessor() throws NoSuchFieldException {
+        namedParametersField = QueryKey.class.getDeclaredField("namedParameters");
+        namedParametersField.setAccessible(true);
+    }
+
+    ParamKey getParamKey(QueryKey key) {
+        try {
+            Map<String, TypedValue> params = (Map<String, TypedValue>) namedParametersField.get(key);
+            return ParamKey.valueOfTyped(params);
+        } catch (IllegalAccessException e) {
+            throw new HibernateException(e);
+        }
+    }
+
+}
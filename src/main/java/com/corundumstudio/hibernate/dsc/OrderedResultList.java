@@ -0,0 +1,232 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Result list sorted by row sort key, see {@link ResultOrder}.
+ * Rows are inserted with binary search, removal takes linear time.
+ * Limited result keeps top rows plus overflow rows, which replace
+ * removed top rows. Result is drained if there are less rows than limit
+ * and database may have rows which aren't kept.
+ *
+ */
+class OrderedResultList extends ResultList {
+
+    private static final long serialVersionUID = -3127335829436290547L;
+
+    private List<OrderedRow> rows;
+    private boolean descending;
+    private int limit;
+    // limit plus overflow, 0 if unlimited
+    private int maxSize;
+    // all rows matching query are kept
+    private boolean complete;
+
+    /**
+     * @param rows - rows in query result order
+     */
+    OrderedResultList(Long timestamp, ResultOrder order, int overflow, List<OrderedRow> rows) {
+        super(timestamp);
+        this.descending = order.isDescending();
+        this.limit = order.getLimit();
+        this.maxSize = limit == 0 ? 0 : limit + overflow;
+        // stable sort keeps query order of equal keys
+        Collections.sort(rows, new Comparator<OrderedRow>() {
+            @Override
+            public int compare(OrderedRow o1, OrderedRow o2) {
+                return OrderedResultList.this.compare(o1.getSortKey(), o2.getSortKey());
+            }
+        });
+        this.complete = limit == 0 || rows.size() < limit;
+        int size = rows.size();
+        if (maxSize > 0 && size > maxSize) {
+            size = maxSize;
+        }
+        this.rows = new ArrayList<OrderedRow>(rows.subList(0, size));
+    }
+
+    /**
+     * Used by deserialization
+     */
+    public OrderedResultList() {
+    }
+
+    private OrderedResultList(OrderedResultList source) {
+        super(source.getTimestamp());
+        this.descending = source.descending;
+        this.limit = source.limit;
+        this.maxSize = source.maxSize;
+        this.complete = source.complete;
+        this.rows = new ArrayList<OrderedRow>(source.rows.size() + 1);
+        this.rows.addAll(source.rows);
+    }
+
+    /**
+     * @param row - {@link OrderedRow}
+     */
+    @Override
+    synchronized boolean addRow(Object row) {
+        OrderedRow orderedRow = (OrderedRow) row;
+        int index = upperBound(orderedRow.getSortKey());
+        if (index == rows.size() && !complete) {
+            // unknown rows may precede it
+            return false;
+        }
+        if (maxSize > 0 && index >= maxSize) {
+            complete = false;
+            return false;
+        }
+        rows.add(index, orderedRow);
+        if (maxSize > 0 && rows.size() > maxSize) {
+            rows.remove(rows.size() - 1);
+            complete = false;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first row with greater sort key
+     */
+    private int upperBound(Comparable<Object> sortKey) {
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(rows.get(mid).getSortKey(), sortKey) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(Comparable<Object> key, Comparable<Object> otherKey) {
+        int res;
+        if (key == null) {
+            res = otherKey == null ? 0 : -1;
+        } else if (otherKey == null) {
+            res = 1;
+        } else {
+            res = key.compareTo(otherKey);
+        }
+        return descending ? -res : res;
+    }
+
+    @Override
+    synchronized boolean removeRow(Object row) {
+        boolean removed = false;
+        for (Iterator<OrderedRow> iterator = rows.iterator(); iterator.hasNext();) {
+            if (isEqual(iterator.next().getRow(), row)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    synchronized boolean containsRow(Object row) {
+        for (OrderedRow orderedRow : rows) {
+            if (isEqual(orderedRow.getRow(), row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isEqual(Object row, Object otherRow) {
+        if (row instanceof Serializable[] && otherRow instanceof Serializable[]) {
+            return Arrays.equals((Serializable[]) row, (Serializable[]) otherRow);
+        }
+        return row.equals(otherRow);
+    }
+
+    @Override
+    synchronized void clearRows() {
+        rows.clear();
+        complete = true;
+    }
+
+    @Override
+    synchronized boolean isDrained() {
+        return !complete && rows.size() < limit;
+    }
+
+    /**
+     * @return amount of top rows
+     */
+    @Override
+    synchronized int rowCount() {
+        if (limit > 0) {
+            return Math.min(limit, rows.size());
+        }
+        return rows.size();
+    }
+
+    @Override
+    synchronized Object[] toRowArray() {
+        Object[] result = new Object[rowCount()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rows.get(i).getRow();
+        }
+        return result;
+    }
+
+    @Override
+    synchronized ResultList copy() {
+        return new OrderedResultList(this).copyState(this);
+    }
+
+    @Override
+    void writeRows(ObjectOutput out) throws IOException {
+        out.writeBoolean(descending);
+        out.writeBoolean(complete);
+        CompactSerializer.writeVarLong(out, limit);
+        CompactSerializer.writeVarLong(out, maxSize);
+        CompactSerializer.writeVarLong(out, rows.size());
+        for (OrderedRow row : rows) {
+            CompactSerializer.writeValue(out, row.getSortKey());
+            CompactSerializer.writeValue(out, row.getRow());
+        }
+    }
+
+    @Override
+    void readRows(ObjectInput in) throws IOException, ClassNotFoundException {
+        descending = in.readBoolean();
+        complete = in.readBoolean();
+        limit = (int) CompactSerializer.readVarLong(in);
+        maxSize = (int) CompactSerializer.readVarLong(in);
+        int size = (int) CompactSerializer.readVarLong(in);
+        rows = new ArrayList<OrderedRow>(size + 1);
+        for (int i = 0; i < size; i++) {
+            Comparable<Object> sortKey = (Comparable<Object>) CompactSerializer.readValue(in);
+            rows.add(new OrderedRow(sortKey, CompactSerializer.readValue(in)));
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Serializable;
+
+/**
+ * Disassembled row with its sort key, added to {@link OrderedResultList}
+ *
+ */
+final class OrderedRow implements Serializable {
+
+    private static final long serialVersionUID = -2712581163270183155L;
+
+    private final Comparable<Object> sortKey;
+    private final Object row;
+
+    OrderedRow(Comparable<Object> sortKey, Object row) {
+        this.sortKey = sortKey;
+        this.row = row;
+    }
+
+    Comparable<Object> getSortKey() {
+        return sortKey;
+    }
+
+    Object getRow() {
+        return row;
+    }
+
+}
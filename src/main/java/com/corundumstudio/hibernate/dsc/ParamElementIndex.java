@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Index of cached queries with collection parameters by collection element,
+ * so entity is routed to all <code>IN</code> queries containing its value
+ * without region scan. Index follows region entries of Infinispan region, including
+ * entries cached by other nodes in replicated mode. For other regions index has
+ * only queries cached by this node and entries removed by region itself
+ * are dropped lazily, when their update is found out of the cache.
+ *
+ */
+class ParamElementIndex {
+
+    private final ParamKeyIndex<ElementKey> index = new ParamKeyIndex<ElementKey>();
+
+    void add(ParamKey paramKey) {
+        for (Entry<String, List<Object>> entry : paramKey.getCollectionParams().entrySet()) {
+            for (Object element : entry.getValue()) {
+                index.add(new ElementKey(entry.getKey(), element), paramKey);
+            }
+        }
+    }
+
+    void remove(ParamKey paramKey) {
+        for (Entry<String, List<Object>> entry : paramKey.getCollectionParams().entrySet()) {
+            for (Object element : entry.getValue()) {
+                index.remove(new ElementKey(entry.getKey(), element), paramKey);
+            }
+        }
+    }
+
+    void clear() {
+        index.clear();
+    }
+
+    void addParamKeysTo(Set<ParamKey> result) {
+        index.addParamKeysTo(result);
+    }
+
+    /**
+     * @return keys of queries with the same parameters,
+     *          whose collection parameters contain the elements
+     */
+    List<ParamKey> find(Map<String, Object> params, Map<String, Object> elementParams) {
+        Entry<String, Object> first = elementParams.entrySet().iterator().next();
+        List<ParamKey> result = new ArrayList<ParamKey>();
+        for (ParamKey paramKey : index.get(new ElementKey(first.getKey(), first.getValue()))) {
+            if (paramKey.matches(params, elementParams)) {
+                result.add(paramKey);
+            }
+        }
+        return result;
+    }
+
+    private static class ElementKey {
+
+        private final String name;
+        private final Object element;
+
+        ElementKey(String name, Object element) {
+            this.name = name;
+            this.element = element;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + (element == null ? 0 : element.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ElementKey)) {
+                return false;
+            }
+            ElementKey other = (ElementKey) obj;
+            return name.equals(other.name)
+                    && (element == null ? other.element == null : element.equals(other.element));
+        }
+
+    }
+
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.hibernate.engine.spi.TypedValue;
+
+/**
+ * Immutable query parameters key used to bind query parameters
+ * to cached query {@link QueryCacheValue}.
+ *
+ * Parameters are kept in arrays sorted by name with precomputed hash,
+ * so the same key is produced for query and for {@link ParamsCommand}.
+ * Externalized as interned parameter names with compactly encoded values.
+ *
+ */
+public final class ParamKey implements Externalizable {
+
+    private static final long serialVersionUID = -1426581937104745522L;
+
+    private String[] names;
+    private Object[] values;
+    private int hashCode;
+
+    /**
+     * Used by deserialization only, key is immutable
+     */
+    public ParamKey() {
+    }
+
+    private ParamKey(String[] names, Object[] values) {
+        sort(names, values);
+        this.names = names;
+        this.values = values;
+        this.hashCode = generateHashCode();
+    }
+
+    /**
+     * Creates key from command parameters. Collection values are expanded
+     * into separate <code>name0_</code>, <code>name1_</code>... parameters
+     * in the same way Hibernate expands query parameter lists.
+     *
+     * @param params
+     * @return key
+     */
+    public static ParamKey valueOf(Map<String, Object> params) {
+        List<String> names = new ArrayList<String>(params.size());
+        List<Object> values = new ArrayList<Object>(params.size());
+        for (Entry<String, Object> entry : params.entrySet()) {
+            if (entry.getValue() instanceof Collection) {
+                int i = 0;
+                for (Object value : (Collection<?>) entry.getValue()) {
+                    names.add(entry.getKey() + i + "_");
+                    values.add(value);
+                    i++;
+                }
+            } else {
+                names.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+        }
+        return new ParamKey(names.toArray(new String[names.size()]), values.toArray());
+    }
+
+    static ParamKey valueOfTyped(Map<String, TypedValue> params) {
+        if (params == null) {
+            return new ParamKey(new String[0], new Object[0]);
+        }
+        String[] names = new String[params.size()];
+        Object[] values = new Object[params.size()];
+        int i = 0;
+        for (Entry<String, TypedValue> entry : params.entrySet()) {
+            names[i] = entry.getKey();
+            values[i] = entry.getValue().getValue();
+            i++;
+        }
+        return new ParamKey(names, values);
+    }
+
+    /**
+     * @return values of collection parameters expanded by Hibernate, by parameter name
+     */
+    Map<String, List<Object>> getCollectionParams() {
+        Map<String, List<Object>> result = null;
+        Set<String> expandedNames = null;
+        for (int i = 0; i < names.length; i++) {
+            String name = getCollectionName(names[i]);
+            // name of the first element goes before names of other elements,
+            // e.g. x10_ of x collection isn't taken for the first element of x1 collection
+            if (name == null || expandedNames != null && expandedNames.contains(names[i])) {
+                continue;
+            }
+            int size = getExpansionSize(name);
+            if (size == 0) {
+                continue;
+            }
+            if (result == null) {
+                result = new HashMap<String, List<Object>>();
+                expandedNames = new HashSet<String>();
+            }
+            List<Object> elements = new ArrayList<Object>(size);
+            for (int j = 0; j < size; j++) {
+                String expandedName = getExpandedName(name, j);
+                expandedNames.add(expandedName);
+                elements.add(getParameter(expandedName));
+            }
+            result.put(name, elements);
+        }
+        if (result == null) {
+            return Collections.emptyMap();
+        }
+        return result;
+    }
+
+    /**
+     * @param params - parameters which should be equal
+     * @param elementParams - elements which should be contained by collection parameters
+     * @return <code>true</code> if key has the same parameters
+     */
+    boolean matches(Map<String, Object> params, Map<String, Object> elementParams) {
+        return matches(params, elementParams, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param ignoredNames - parameters which aren't compared
+     */
+    boolean matches(Map<String, Object> params, Map<String, Object> elementParams, Collection<String> ignoredNames) {
+        Set<String> expandedNames = new HashSet<String>();
+        for (Entry<String, Object> entry : elementParams.entrySet()) {
+            boolean contains = false;
+            int size = getExpansionSize(entry.getKey());
+            for (int i = 0; i < size; i++) {
+                String name = getExpandedName(entry.getKey(), i);
+                expandedNames.add(name);
+                contains |= isEqual(entry.getValue(), getParameter(name));
+            }
+            if (!contains) {
+                return false;
+            }
+        }
+        int paramsCount = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (ignoredNames.contains(names[i]) || expandedNames.contains(names[i])) {
+                continue;
+            }
+            if (!params.containsKey(names[i]) || !isEqual(params.get(names[i]), values[i])) {
+                return false;
+            }
+            paramsCount++;
+        }
+        return paramsCount == params.size();
+    }
+
+    /**
+     * @return parameter value or <code>null</code> if it isn't defined
+     */
+    Object getParameter(String name) {
+        int index = getParameterIndex(name);
+        if (index < 0) {
+            return null;
+        }
+        return values[index];
+    }
+
+    private static boolean isEqual(Object value, Object otherValue) {
+        return value == null ? otherValue == null : value.equals(otherValue);
+    }
+
+    /**
+     * Hibernate replaces collection parameter <code>name</code> with its elements bound as
+     * <code>name0_</code>, <code>name1_</code>... parameters, so the key has
+     * the whole sequence starting from <code>name0_</code> and no <code>name</code> parameter.
+     * Single element collection may be bound as plain <code>name</code> parameter instead.
+     *
+     * @return amount of collection elements, <code>0</code> if collection isn't expanded in the key
+     */
+    private int getExpansionSize(String collectionName) {
+        if (getParameterIndex(collectionName) >= 0) {
+            return 0;
+        }
+        int size = 0;
+        while (getParameterIndex(getExpandedName(collectionName, size)) >= 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private int getParameterIndex(String name) {
+        return Arrays.binarySearch(names, name);
+    }
+
+    private static String getExpandedName(String collectionName, int index) {
+        return collectionName + index + "_";
+    }
+
+    /**
+     * @return collection parameter name of <code>name0_</code> name or <code>null</code>,
+     *          first element name identifies expansion, see {@link #getExpansionSize}
+     */
+    private static String getCollectionName(String name) {
+        if (name.length() < 3 || !name.endsWith("0_")) {
+            return null;
+        }
+        return name.substring(0, name.length() - 2);
+    }
+
+    private static void sort(String[] names, Object[] values) {
+        // insertion sort, query usually has a few parameters
+        for (int i = 1; i < names.length; i++) {
+            String name = names[i];
+            Object value = values[i];
+            int j = i - 1;
+            while (j >= 0 && names[j].compareTo(name) > 0) {
+                names[j + 1] = names[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            names[j + 1] = name;
+            values[j + 1] = value;
+        }
+    }
+
+    private int generateHashCode() {
+        return 31 * Arrays.hashCode(names) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        CompactSerializer.writeVarLong(out, names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeUTF(names[i]);
+            CompactSerializer.writeValue(out, values[i]);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = (int) CompactSerializer.readVarLong(in);
+        names = new String[size];
+        values = new Object[size];
+        for (int i = 0; i < size; i++) {
+            // a few distinct names are shared by all keys
+            names[i] = in.readUTF().intern();
+            values[i] = CompactSerializer.readValue(in);
+        }
+        hashCode = generateHashCode();
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ParamKey)) {
+            return false;
+        }
+        ParamKey other = (ParamKey) obj;
+        return hashCode == other.hashCode
+                && Arrays.equals(names, other.names)
+                && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(names[i]).append('=').append(values[i]);
+        }
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counting Bloom filter of {@link ParamKey}s mapped in region. Tells for sure
+ * that no query is cached for the parameters, so entity events can skip region lookup.
+ * Counters are 4 bits wide, saturated counter is never decremented
+ * since its real value is unknown.
+ *
+ */
+class ParamKeyFilter {
+
+    private static final int COUNTERS_PER_WORD = 8;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicIntegerArray counters;
+    private final int counterCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedKeys - amount of keys to hold with <code>falsePositiveRate</code>
+     */
+    ParamKeyFilter(int expectedKeys, double falsePositiveRate) {
+        double ln2 = Math.log(2);
+        long size = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        counterCount = (int) Math.max(COUNTERS_PER_WORD, Math.min(Integer.MAX_VALUE - COUNTERS_PER_WORD, size));
+        hashCount = Math.max(1, (int) Math.round((double) counterCount / expectedKeys * ln2));
+        counters = new AtomicIntegerArray((counterCount + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+    }
+
+    void add(Object key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            increment(index(hash, i));
+        }
+    }
+
+    void remove(Object key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            decrement(index(hash, i));
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the key is definitely absent
+     */
+    boolean mightContain(Object key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            if (count(index(hash, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return filter size in bytes
+     */
+    long getSize() {
+        return counters.length() * 4L;
+    }
+
+    private long hash(Object key) {
+        // MurmurHash3 finalizer spreads hashCode over 64 bits for double hashing
+        long h = key.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int index(long hash, int i) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        return (combined & Integer.MAX_VALUE) % counterCount;
+    }
+
+    private int count(int index) {
+        int shift = (index % COUNTERS_PER_WORD) * 4;
+        return (counters.get(index / COUNTERS_PER_WORD) >>> shift) & MAX_COUNT;
+    }
+
+    private void increment(int index) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = (index % COUNTERS_PER_WORD) * 4;
+        while (true) {
+            int value = counters.get(word);
+            int count = (value >>> shift) & MAX_COUNT;
+            if (count == MAX_COUNT
+                    || counters.compareAndSet(word, value, value + (1 << shift))) {
+                return;
+            }
+        }
+    }
+
+    private void decrement(int index) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = (index % COUNTERS_PER_WORD) * 4;
+        while (true) {
+            int value = counters.get(word);
+            int count = (value >>> shift) & MAX_COUNT;
+            if (count == 0 || count == MAX_COUNT
+                    || counters.compareAndSet(word, value, value - (1 << shift))) {
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local index of cached query keys. Index may contain keys of evicted
+ * or changed queries, so they should be checked and removed by caller.
+ *
+ * @param <K> - index key
+ */
+class ParamKeyIndex<K> {
+
+    private final ConcurrentMap<K, ConcurrentMap<ParamKey, Boolean>> index =
+                        new ConcurrentHashMap<K, ConcurrentMap<ParamKey, Boolean>>();
+
+    void add(K key, ParamKey paramKey) {
+        while (true) {
+            ConcurrentMap<ParamKey, Boolean> paramKeys = index.get(key);
+            if (paramKeys == null) {
+                paramKeys = new ConcurrentHashMap<ParamKey, Boolean>();
+                ConcurrentMap<ParamKey, Boolean> oldParamKeys = index.putIfAbsent(key, paramKeys);
+                if (oldParamKeys != null) {
+                    paramKeys = oldParamKeys;
+                }
+            }
+            paramKeys.put(paramKey, Boolean.TRUE);
+            // set could be removed from index as empty meanwhile
+            if (index.get(key) == paramKeys) {
+                return;
+            }
+        }
+    }
+
+    void remove(K key, ParamKey paramKey) {
+        ConcurrentMap<ParamKey, Boolean> paramKeys = index.get(key);
+        if (paramKeys == null) {
+            return;
+        }
+        paramKeys.remove(paramKey);
+        if (paramKeys.isEmpty()) {
+            index.remove(key, paramKeys);
+        }
+    }
+
+    void clear() {
+        index.clear();
+    }
+
+    void addParamKeysTo(Set<ParamKey> result) {
+        for (ConcurrentMap<ParamKey, Boolean> paramKeys : index.values()) {
+            result.addAll(paramKeys.keySet());
+        }
+    }
+
+    Set<ParamKey> get(K key) {
+        ConcurrentMap<ParamKey, Boolean> paramKeys = index.get(key);
+        if (paramKeys == null) {
+            return Collections.emptySet();
+        }
+        return paramKeys.keySet();
+    }
+
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Notified about {@link QueryCacheValue} entries added to region or removed from it,
+ * keeps local indexes of cached queries in sync with region.
+ *
+ */
+interface ParamKeyListener {
+
+    void onAdd(ParamKey paramKey);
+
+    void onRemove(ParamKey paramKey);
+
+}
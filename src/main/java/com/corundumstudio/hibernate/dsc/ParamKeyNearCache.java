@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded local copy of region {@link QueryCacheValue} entries, including
+ * absent ones, lets entity events skip remote region lookup.
+ * Entries are dropped on any region change of their {@link ParamKey}.
+ * Lookup result is stored only if no invalidation of the same segment
+ * happened during the lookup, so a concurrent remote put can't be hidden
+ * by stale absent entry.
+ *
+ */
+class ParamKeyNearCache {
+
+    /**
+     * Cached value of absent region entry
+     */
+    static final Object ABSENT = new Object();
+
+    private final Segment[] segments;
+
+    ParamKeyNearCache(int maxSize) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(64, maxSize / 16)));
+        segments = new Segment[count];
+        int segmentSize = Math.max(1, maxSize / count);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * @return {@link QueryCacheValue}, {@link #ABSENT} or <code>null</code> if the key isn't cached
+     */
+    Object get(ParamKey key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * @return stamp to pass to {@link #put} after region lookup
+     */
+    long stamp(ParamKey key) {
+        return segmentFor(key).getGeneration();
+    }
+
+    void put(ParamKey key, QueryCacheValue value, long stamp) {
+        Object entry = value;
+        if (entry == null) {
+            entry = ABSENT;
+        }
+        segmentFor(key).put(key, entry, stamp);
+    }
+
+    void invalidate(Object key) {
+        segmentFor(key).invalidate(key);
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private static class Segment {
+
+        private final Map<Object, Object> map;
+        private long generation;
+
+        Segment(final int maxSize) {
+            map = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized Object get(Object key) {
+            return map.get(key);
+        }
+
+        synchronized long getGeneration() {
+            return generation;
+        }
+
+        synchronized void put(Object key, Object value, long stamp) {
+            if (generation == stamp) {
+                map.put(key, value);
+            }
+        }
+
+        synchronized void invalidate(Object key) {
+            generation++;
+            map.remove(key);
+        }
+
+        synchronized void clear() {
+            generation++;
+            map.clear();
+        }
+
+    }
+
+}
@@ -21,13 +21,75 @@ import java.util.Map;
 public class ParamsCommand {
 
     private final Map<String, Object> params = new HashMap<String, Object>();
+    private final Map<String, Object> elementParams = new HashMap<String, Object>();
+    private final Map<RangeParameter, Comparable<Object>> rangeParams =
+                                    new HashMap<RangeParameter, Comparable<Object>>();
 
     public void setParameter(String name, Object value) {
         params.put(name, value);
     }
 
+    /**
+     * Matches all cached queries whose collection parameter contains the value,
+     * e.g. <code>status</code> of entity for <code>WHERE status IN (:statuses)</code> queries.
+     * Queries are found by local index, so ones cached by other nodes are matched
+     * only in local or replicated Infinispan region.
+     *
+     * @param name - collection parameter name
+     * @param value - collection element
+     */
+    public void setParameterElement(String name, Object value) {
+        elementParams.put(name, value);
+    }
+
+    /**
+     * Matches all cached queries whose range parameters contain the value, e.g.
+     * <code>created</code> of entity for <code>WHERE created BETWEEN :from AND :to</code> queries.
+     * Bounds are inclusive. Queries are found the same way as by {@link #setParameterElement}.
+     *
+     * @param lowerName - lower bound parameter name, <code>null</code> if range is unbounded below
+     * @param upperName - upper bound parameter name, <code>null</code> if range is unbounded above
+     * @param value - entity value of the same type as bound parameters
+     */
+    public void setParameterRange(String lowerName, String upperName, Comparable<?> value) {
+        setParameterRange(lowerName, true, upperName, true, value);
+    }
+
+    /**
+     * Same as {@link #setParameterRange(String, String, Comparable)}, e.g.
+     * <code>setParameterRange(null, false, "max", false, price)</code>
+     * for <code>WHERE price &lt; :max</code> queries
+     */
+    public void setParameterRange(String lowerName, boolean lowerInclusive,
+                                    String upperName, boolean upperInclusive, Comparable<?> value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Range value can't be null");
+        }
+        rangeParams.put(new RangeParameter(lowerName, lowerInclusive, upperName, upperInclusive),
+                            (Comparable<Object>) value);
+    }
+
     Map<String, Object> getParams() {
         return params;
     }
 
+    Map<String, Object> getElementParams() {
+        return elementParams;
+    }
+
+    Map<RangeParameter, Comparable<Object>> getRangeParams() {
+        return rangeParams;
+    }
+
+    /**
+     * @return <code>true</code> if command may match many cached queries
+     */
+    boolean isMultiQuery() {
+        return !elementParams.isEmpty() || !rangeParams.isEmpty();
+    }
+
+    ParamKey getParamKey() {
+        return ParamKey.valueOf(params);
+    }
+
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+/**
+ * Queries of region warm-up, see {@link DynamicQueryCache#preload}
+ *
+ */
+public abstract class PreloadCallback {
+
+    /**
+     * Rows of the same parameter value should be adjacent,
+     * e.g. <code>SELECT phone, id FROM SimpleEntity ORDER BY phone</code>.
+     * Fetch size of the query defines amount of rows read from database at once.
+     *
+     * @return query selecting parameter value in the first column and result row in the others
+     */
+    protected abstract Query createGroupedQuery(Session session);
+
+    /**
+     * @param value - parameter value selected by grouped query
+     * @return cacheable query of the region with bound parameter,
+     *          it should be the same as query used by application
+     */
+    protected abstract Query createCachedQuery(Session session, Object value);
+
+}
@@ -15,14 +15,23 @@
  */
 package com.corundumstudio.hibernate.dsc;
 
-import java.util.Collections;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.spi.QueryCache;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.event.spi.PostDeleteEvent;
 import org.hibernate.event.spi.PostDeleteEventListener;
@@ -30,8 +39,11 @@ import org.hibernate.event.spi.PostInsertEvent;
 import org.hibernate.event.spi.PostInsertEventListener;
 import org.hibernate.event.spi.PostUpdateEvent;
 import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap;
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap.Option;
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap.ReferenceType;
 import org.hibernate.persister.entity.EntityPersister;
-import org.hibernate.tuple.entity.EntityMetamodel;
+import org.hibernate.type.Type;
 
 
 public class QueryCacheEntityListener implements PostInsertEventListener,
@@ -41,8 +53,56 @@ public class QueryCacheEntityListener implements PostInsertEventListener,
 
     private final ConcurrentMap<Class<?>, ConcurrentMap<String, QueryListenerEntry>> map =
                        new ConcurrentHashMap<Class<?>, ConcurrentMap<String, QueryListenerEntry>>();
+    // session -> batch of its transaction, session is weakly referenced, so batch
+    // of transaction which has never been completed doesn't outlive its session
+    private final ConcurrentMap<SessionImplementor, TransactionBatch> transactionBatches =
+                       new ConcurrentReferenceHashMap<SessionImplementor, TransactionBatch>(16, .75f, 16,
+                               ReferenceType.WEAK, ReferenceType.STRONG, EnumSet.of(Option.IDENTITY_COMPARISONS));
+    private volatile boolean transactionBatching = true;
+    private volatile AsyncApplier asyncApplier;
+
+    // persister -> registrations matching its entity, persister is weakly referenced
+    private final ConcurrentMap<EntityPersister, DispatchTable> dispatchTables =
+                       new ConcurrentReferenceHashMap<EntityPersister, DispatchTable>(16, .75f, 16,
+                               ReferenceType.WEAK, ReferenceType.STRONG, EnumSet.of(Option.IDENTITY_COMPARISONS));
+    private final AtomicInteger registrationVersion = new AtomicInteger();
+    // session factories whose regions are configured by registrations, factory is weakly referenced
+    private final ConcurrentMap<SessionFactoryImplementor, Boolean> sessionFactories =
+                       new ConcurrentReferenceHashMap<SessionFactoryImplementor, Boolean>(16, .75f, 16,
+                               ReferenceType.WEAK, ReferenceType.STRONG, EnumSet.of(Option.IDENTITY_COMPARISONS));
+
+    /**
+     * Cache changes made inside transaction are coalesced and applied after its commit,
+     * changes of rolled back transaction are discarded. Enabled by default.
+     *
+     * @param transactionBatching - <code>false</code> to apply every change immediately
+     */
+    public void setTransactionBatching(boolean transactionBatching) {
+        this.transactionBatching = transactionBatching;
+    }
 
     public <T> void register(Class<T> clazz, String regionName, CacheCallback<T> handler) {
+        register(clazz, regionName, handler, new String[0]);
+    }
+
+    /**
+     * @param properties - entity properties used by handler to build query parameters and result.
+     *          If defined, updates which don't change them are skipped and
+     *          updates which do change them move result from query with old parameters
+     *          to query with new ones using {@link CacheCallback#onInsertOrDelete},
+     *          {@link CacheCallback#onUpdate} is called only if entity old state is unknown
+     */
+    public <T> void register(Class<T> clazz, String regionName, CacheCallback<T> handler, String... properties) {
+        register(clazz, regionName, handler, (ResultOrder) null, properties);
+    }
+
+    /**
+     * @param resultOrder - order of query result, <code>null</code> if added results
+     *          are appended to the result end
+     * @param properties - see {@link #register(Class, String, CacheCallback, String...)}
+     */
+    public <T> void register(Class<T> clazz, String regionName, CacheCallback<T> handler,
+                                ResultOrder resultOrder, String... properties) {
         ConcurrentMap<String, QueryListenerEntry> values = map.get(clazz);
         if (values == null) {
             values = new ConcurrentHashMap<String, QueryListenerEntry>();
@@ -53,64 +113,245 @@ public class QueryCacheEntityListener implements PostInsertEventListener,
         }
         QueryListenerEntry entry = values.get(regionName);
         if (entry == null) {
-            entry = new QueryListenerEntry(regionName, handler);
-            values.putIfAbsent(regionName, entry);
+            values.putIfAbsent(regionName, new QueryListenerEntry(regionName, handler, properties, resultOrder));
+            entry = values.get(regionName);
+        }
+        registrationVersion.incrementAndGet();
+        for (SessionFactoryImplementor sessionFactory : sessionFactories.keySet()) {
+            configureRegion(sessionFactory, entry);
+        }
+    }
+
+    /**
+     * Configures registered regions of session factory the listener is appended to,
+     * so results cached before the first entity event are kept in registered order.
+     * Regions registered later are configured on registration. Regions of session factory
+     * which hasn't been added are configured on the first entity event.
+     */
+    public void addSessionFactory(SessionFactory sessionFactory) {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) sessionFactory;
+        if (sessionFactories.putIfAbsent(factory, Boolean.TRUE) != null) {
+            return;
+        }
+        for (ConcurrentMap<String, QueryListenerEntry> values : map.values()) {
+            for (QueryListenerEntry entry : values.values()) {
+                configureRegion(factory, entry);
+            }
+        }
+    }
+
+    private void configureRegion(SessionFactoryImplementor sessionFactory, QueryListenerEntry entry) {
+        if (sessionFactory.isClosed()) {
+            sessionFactories.remove(sessionFactory);
+            return;
+        }
+        QueryCache queryCache = sessionFactory.getQueryCache(entry.getRegionName());
+        if (!(queryCache instanceof DynamicQueryCache)) {
+            return;
+        }
+        DynamicQueryCache dynamicQueryCache = (DynamicQueryCache) queryCache;
+        if (entry.getResultOrder() != null) {
+            dynamicQueryCache.setResultOrder(entry.getResultOrder());
+        }
+        dynamicQueryCache.addEntityListener(this);
+    }
+
+    /**
+     * Moves cache updates to background workers, so committing thread
+     * doesn't wait for them. Updates of the same region and query parameters
+     * are applied in order of their submission. Updates submitted before
+     * mode change are applied before it's returned. Workers are stopped when
+     * session factory of listener regions is closed, see {@link #shutdown()}.
+     *
+     * @param workers - amount of worker threads, <code>0</code> to apply updates synchronously
+     * @param queueCapacity - max amount of pending updates per worker,
+     *          committing thread waits while worker queue is full
+     */
+    public synchronized void setAsyncApply(int workers, int queueCapacity) {
+        if (workers < 0) {
+            throw new IllegalArgumentException("workers can't be negative: " + workers);
+        }
+        if (workers > 0 && queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity should be positive: " + queueCapacity);
+        }
+        if (asyncApplier != null) {
+            asyncApplier.shutdown();
+        }
+        if (workers > 0) {
+            asyncApplier = new AsyncApplier(workers, queueCapacity);
+        } else {
+            asyncApplier = null;
+        }
+    }
+
+    /**
+     * Stops background workers after all submitted updates are applied,
+     * the next updates are applied synchronously
+     */
+    public void shutdown() {
+        setAsyncApply(0, 0);
+    }
+
+    /**
+     * Waits until all cache updates submitted before the call are applied
+     *
+     * @return <code>false</code> if the waiting time elapsed
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        AsyncApplier applier = asyncApplier;
+        if (applier == null) {
+            return true;
         }
+        return applier.flush(timeout, unit);
     }
 
     @Override
     public void onPostInsert(PostInsertEvent event) {
-        Set<Entry<String, QueryListenerEntry>> values = getValue(event.getPersister());
-        for (Entry<String, QueryListenerEntry> entry : values) {
+        for (DispatchEntry entry : getDispatchEntries(event.getPersister())) {
+            long startTime = System.nanoTime();
             InsertOrDeleteCommand command = new InsertOrDeleteCommand();
-            CacheCallback handler = entry.getValue().getHandler();
+            CacheCallback<Object> handler = entry.listenerEntry.getHandler();
             handler.commonParams(command, event.getEntity());
             handler.onInsertOrDelete(command, event.getEntity());
 
-            DynamicQueryCache queryCache = getQueryCache(event.getPersister(), entry.getKey(), entry.getValue());
-            addResult(queryCache, entry.getValue(), command, event.getSession());
+            DynamicQueryCache queryCache = entry.queryCache;
+            addResult(queryCache, entry.listenerEntry, command, event.getPersister(), event.getId(), event.getSession());
+            queryCache.getStatistics().recordEvent(System.nanoTime() - startTime);
         }
     }
 
     @Override
     public void onPostDelete(PostDeleteEvent event) {
-        Set<Entry<String, QueryListenerEntry>> values = getValue(event.getPersister());
-        for (Entry<String, QueryListenerEntry> entry : values) {
+        for (DispatchEntry entry : getDispatchEntries(event.getPersister())) {
+            long startTime = System.nanoTime();
+            DynamicQueryCache queryCache = entry.queryCache;
             InsertOrDeleteCommand command = new InsertOrDeleteCommand();
-            CacheCallback handler = entry.getValue().getHandler();
+            CacheCallback<Object> handler = entry.listenerEntry.getHandler();
             handler.commonParams(command, event.getEntity());
             handler.onInsertOrDelete(command, event.getEntity());
-
-            DynamicQueryCache queryCache = getQueryCache(event.getPersister(), entry.getKey(), entry.getValue());
-            removeResult(queryCache, entry.getValue(), command, event.getSession());
+            List<ParamKey> paramKeys = removeResult(queryCache, entry.listenerEntry, command,
+                                                        event.getPersister(), event.getId(), event.getSession());
+            if (queryCache.isResultIndexed()) {
+                removeIndexedResult(queryCache, entry.listenerEntry, paramKeys,
+                                        event.getPersister(), event.getId(), event.getSession());
+            }
+            queryCache.getStatistics().recordEvent(System.nanoTime() - startTime);
         }
     }
 
-    private void removeResult(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
-                        InsertOrDeleteCommand builder, SessionImplementor session) {
-        Lock lock = null;
-        if (listenerEntry.getHandler().isConcurrentAccess()) {
-            lock = listenerEntry.getLock(builder.getParams());
-            lock.lock();
+    /**
+     * Removes deleted entity from cached results which contain it but haven't been
+     * found by callback, e.g. ones cached with parameters of its previous state
+     *
+     * @param removedKeys - keys of results entity has been already removed from
+     */
+    private void removeIndexedResult(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
+                        List<ParamKey> removedKeys, EntityPersister persister, Serializable id,
+                        SessionImplementor session) {
+        TransactionBatch batch = getTransactionBatch(session);
+        if (batch != null) {
+            // results added by the transaction aren't indexed yet
+            batch.cancelAdded(listenerEntry, session.generateEntityKey(id, persister), removedKeys);
         }
-        try {
-            queryCache.removeResult(builder.getParams(), builder.getResult(), session);
-        } finally {
-            if (lock != null) {
-                lock.unlock();
+        Object disassembledId = persister.getIdentifierType().disassemble(id, session, null);
+        // entity results of supertype contain the entity too
+        for (String entityName = persister.getEntityName(); entityName != null;
+                entityName = session.getFactory().getEntityPersister(entityName).getEntityMetamodel().getSuperclass()) {
+            for (ParamKey paramKey : queryCache.getParamKeys(entityName, disassembledId)) {
+                if (removedKeys.contains(paramKey)) {
+                    continue;
+                }
+                if (batch != null) {
+                    batch.getChanges(queryCache, listenerEntry, paramKey).removeValue(disassembledId);
+                    continue;
+                }
+                ResultChanges changes = new ResultChanges();
+                changes.removeValue(disassembledId);
+                applyChanges(queryCache, listenerEntry, paramKey, changes, session);
             }
         }
     }
 
+    /**
+     * @return keys of results the entity has been removed from
+     */
+    private List<ParamKey> removeResult(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
+                        InsertOrDeleteCommand command, EntityPersister persister, Serializable id,
+                        SessionImplementor session) {
+        TransactionBatch batch = getTransactionBatch(session);
+        EntityKey entityKey = getBatchEntityKey(batch, queryCache, persister, id, session);
+        List<ParamKey> paramKeys = queryCache.getParamKeys(command);
+        for (ParamKey paramKey : paramKeys) {
+            if (batch != null) {
+                batch.remove(queryCache, listenerEntry, paramKey, command, entityKey);
+                continue;
+            }
+            ResultChanges changes = new ResultChanges();
+            changes.remove(command);
+            applyChanges(queryCache, listenerEntry, paramKey, changes, session);
+        }
+        return paramKeys;
+    }
+
     private void addResult(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
-                        InsertOrDeleteCommand command, SessionImplementor session) {
+                        InsertOrDeleteCommand command, EntityPersister persister, Serializable id,
+                        SessionImplementor session) {
+        TransactionBatch batch = getTransactionBatch(session);
+        EntityKey entityKey = getBatchEntityKey(batch, queryCache, persister, id, session);
+        for (ParamKey paramKey : queryCache.getParamKeys(command)) {
+            if (batch != null) {
+                batch.add(queryCache, listenerEntry, paramKey, command, entityKey);
+                continue;
+            }
+            ResultChanges changes = new ResultChanges();
+            changes.add(command);
+            applyChanges(queryCache, listenerEntry, paramKey, changes, session);
+        }
+    }
+
+    /**
+     * @return key to track rows of the entity in transaction batch,
+     *          <code>null</code> if they aren't tracked
+     */
+    private EntityKey getBatchEntityKey(TransactionBatch batch, DynamicQueryCache queryCache,
+                        EntityPersister persister, Serializable id, SessionImplementor session) {
+        if (batch == null || !queryCache.isResultIndexed()) {
+            return null;
+        }
+        return session.generateEntityKey(id, persister);
+    }
+
+    void applyChanges(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
+                        ParamKey paramKey, ResultChanges changes, SessionImplementor session) {
+        ResultUpdate update = queryCache.prepareUpdate(paramKey, changes, session);
+        submitUpdate(queryCache, listenerEntry, paramKey, update);
+    }
+
+    private void submitUpdate(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
+                        ParamKey paramKey, ResultUpdate update) {
+        if (update == null) {
+            return;
+        }
+        AsyncApplier applier = asyncApplier;
+        if (applier == null) {
+            applyUpdate(queryCache, listenerEntry, paramKey, update);
+            return;
+        }
+        int key = 31 * listenerEntry.getRegionName().hashCode() + paramKey.hashCode();
+        applier.submit(key, new UpdateTask(queryCache, listenerEntry, paramKey, update));
+    }
+
+    private void applyUpdate(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
+                        ParamKey paramKey, ResultUpdate update) {
         Lock lock = null;
-        if (listenerEntry.getHandler().isConcurrentAccess()) {
-            lock = listenerEntry.getLock(command.getParams());
+        if (listenerEntry.getHandler().isConcurrentAccess() && !queryCache.isOptimisticUpdates()) {
+            lock = listenerEntry.getLock(paramKey);
+            long startTime = System.nanoTime();
             lock.lock();
+            queryCache.getStatistics().recordLockWait(System.nanoTime() - startTime);
         }
         try {
-            queryCache.addResult(command.getParams(), command.getResult(), command.isUniqueResult(), session);
+            queryCache.applyUpdate(update);
         } finally {
             if (lock != null) {
                 lock.unlock();
@@ -118,39 +359,258 @@ public class QueryCacheEntityListener implements PostInsertEventListener,
         }
     }
 
+    /**
+     * @return batch of current session transaction or <code>null</code>
+     *          if changes should be applied immediately
+     */
+    private TransactionBatch getTransactionBatch(SessionImplementor session) {
+        if (!transactionBatching || !session.isTransactionInProgress()) {
+            return null;
+        }
+        // session is used by single thread
+        TransactionBatch batch = transactionBatches.get(session);
+        if (batch == null) {
+            batch = new TransactionBatch(this, session);
+            session.getTransactionCoordinator().getSynchronizationRegistry().registerSynchronization(batch);
+            transactionBatches.put(session, batch);
+        }
+        return batch;
+    }
+
+    void removeTransactionBatch(SessionImplementor session) {
+        transactionBatches.remove(session);
+    }
 
     @Override
     public void onPostUpdate(PostUpdateEvent event) {
-        Set<Entry<String, QueryListenerEntry>> values = getValue(event.getPersister());
-        for (Entry<String, QueryListenerEntry> entry : values) {
-            UpdateCommand command = new UpdateCommand();
-            CacheCallback handler = entry.getValue().getHandler();
-            handler.commonParams(command, event.getEntity());
-            handler.onUpdate(command, event.getEntity());
+        for (DispatchEntry entry : getDispatchEntries(event.getPersister())) {
+            long startTime = System.nanoTime();
+            if (entry.propertyIndexes != null && event.getOldState() != null) {
+                if (isChanged(entry.propertyIndexes, event)) {
+                    moveResult(entry, event);
+                }
+            } else {
+                UpdateCommand command = new UpdateCommand();
+                CacheCallback<Object> handler = entry.listenerEntry.getHandler();
+                handler.commonParams(command, event.getEntity());
+                handler.onUpdate(command, event.getEntity());
+
+                if (command.isAddResult() || command.isUniqueResult()) {
+                    addResult(entry.queryCache, entry.listenerEntry, command,
+                                event.getPersister(), event.getId(), event.getSession());
+                }
+                if (command.isRemoveResult()) {
+                    removeResult(entry.queryCache, entry.listenerEntry, command,
+                                event.getPersister(), event.getId(), event.getSession());
+                }
+            }
+            entry.queryCache.getStatistics().recordEvent(System.nanoTime() - startTime);
+        }
+    }
+
+    private boolean isChanged(int[] propertyIndexes, PostUpdateEvent event) {
+        int[] dirtyProperties = event.getDirtyProperties();
+        if (dirtyProperties == null) {
+            Type[] types = event.getPersister().getPropertyTypes();
+            for (int index : propertyIndexes) {
+                if (!types[index].isEqual(event.getOldState()[index], event.getState()[index])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int dirtyProperty : dirtyProperties) {
+            for (int index : propertyIndexes) {
+                if (dirtyProperty == index) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-            DynamicQueryCache queryCache = getQueryCache(event.getPersister(), entry.getKey(), entry.getValue());
-            if (command.isAddResult() || command.isUniqueResult()) {
-                addResult(queryCache, entry.getValue(), command, event.getSession());
+    /**
+     * Removes result of entity old state and adds result of its new state
+     */
+    private void moveResult(DispatchEntry entry, PostUpdateEvent event) {
+        EntityPersister persister = event.getPersister();
+        Object oldEntity = persister.instantiate(event.getId(), event.getSession());
+        persister.setPropertyValues(oldEntity, event.getOldState());
+
+        QueryListenerEntry listenerEntry = entry.listenerEntry;
+        InsertOrDeleteCommand oldCommand = createCommand(listenerEntry, oldEntity);
+        InsertOrDeleteCommand newCommand = createCommand(listenerEntry, event.getEntity());
+        ParamKey oldKey = oldCommand.getParamKey();
+        ParamKey newKey = newCommand.getParamKey();
+        if (oldKey.equals(newKey)
+                && oldCommand.getElementParams().equals(newCommand.getElementParams())
+                && oldCommand.getRangeParams().equals(newCommand.getRangeParams())
+                && isSameResult(oldCommand, newCommand)) {
+            return;
+        }
+
+        SessionImplementor session = event.getSession();
+        if (getTransactionBatch(session) != null
+                || oldCommand.isMultiQuery() || newCommand.isMultiQuery()) {
+            // result may be in many queries
+            removeResult(entry.queryCache, listenerEntry, oldCommand, persister, event.getId(), session);
+            addResult(entry.queryCache, listenerEntry, newCommand, persister, event.getId(), session);
+            return;
+        }
+
+        ResultChanges removal = new ResultChanges();
+        removal.remove(oldCommand);
+        if (oldKey.equals(newKey)) {
+            removal.add(newCommand);
+            applyChanges(entry.queryCache, listenerEntry, newKey, removal, session);
+            return;
+        }
+        ResultChanges addition = new ResultChanges();
+        addition.add(newCommand);
+        ResultUpdate oldUpdate = entry.queryCache.prepareUpdate(oldKey, removal, session);
+        ResultUpdate newUpdate = entry.queryCache.prepareUpdate(newKey, addition, session);
+
+        if (asyncApplier != null
+                || !listenerEntry.getHandler().isConcurrentAccess()
+                || entry.queryCache.isOptimisticUpdates()) {
+            submitUpdate(entry.queryCache, listenerEntry, oldKey, oldUpdate);
+            submitUpdate(entry.queryCache, listenerEntry, newKey, newUpdate);
+            return;
+        }
+        // both results are changed under the same lock
+        Lock lock = listenerEntry.getLock(oldKey, newKey);
+        long lockTime = System.nanoTime();
+        lock.lock();
+        entry.queryCache.getStatistics().recordLockWait(System.nanoTime() - lockTime);
+        try {
+            if (oldUpdate != null) {
+                entry.queryCache.applyUpdate(oldUpdate);
             }
-            if (command.isRemoveResult()) {
-                removeResult(queryCache, entry.getValue(), command, event.getSession());
+            if (newUpdate != null) {
+                entry.queryCache.applyUpdate(newUpdate);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    private DynamicQueryCache getQueryCache(EntityPersister persister,
-                                    String regionName, QueryListenerEntry listenerValue) {
-        return (DynamicQueryCache) persister.getFactory().getQueryCache(regionName);
+    private boolean isSameResult(InsertOrDeleteCommand oldCommand, InsertOrDeleteCommand newCommand) {
+        Object oldResult = oldCommand.getResult();
+        Object newResult = newCommand.getResult();
+        if (oldResult == null || newResult == null) {
+            return oldResult == newResult;
+        }
+        return RowKey.of(oldResult).equals(RowKey.of(newResult));
     }
 
-    private Set<Entry<String, QueryListenerEntry>> getValue(EntityPersister persister) {
-        EntityMetamodel entityMetamodel = persister.getEntityMetamodel();
-        Class<?> clazz = entityMetamodel.getEntityType().getReturnedClass();
-        Map<String, QueryListenerEntry> values = map.get(clazz);
-        if (values == null) {
-            return Collections.emptySet();
+    private InsertOrDeleteCommand createCommand(QueryListenerEntry listenerEntry, Object entity) {
+        InsertOrDeleteCommand command = new InsertOrDeleteCommand();
+        CacheCallback<Object> handler = listenerEntry.getHandler();
+        handler.commonParams(command, entity);
+        handler.onInsertOrDelete(command, entity);
+        return command;
+    }
+
+    private DispatchEntry[] getDispatchEntries(EntityPersister persister) {
+        // read before build, so concurrent registration leads to rebuild
+        int version = registrationVersion.get();
+        DispatchTable table = dispatchTables.get(persister);
+        if (table == null || table.version != version) {
+            table = new DispatchTable(version, buildDispatchEntries(persister));
+            dispatchTables.put(persister, table);
         }
-        return values.entrySet();
+        return table.entries;
+    }
+
+    /**
+     * Collects registrations of entity class and its supertypes,
+     * the most specific registration is used per region
+     */
+    private DispatchEntry[] buildDispatchEntries(EntityPersister persister) {
+        Class<?> entityClass = persister.getEntityMetamodel().getEntityType().getReturnedClass();
+        Map<String, Class<?>> regionClasses = new LinkedHashMap<String, Class<?>>();
+        Map<String, QueryListenerEntry> regionEntries = new LinkedHashMap<String, QueryListenerEntry>();
+        for (Entry<Class<?>, ConcurrentMap<String, QueryListenerEntry>> classEntry : map.entrySet()) {
+            Class<?> registeredClass = classEntry.getKey();
+            if (!registeredClass.isAssignableFrom(entityClass)) {
+                continue;
+            }
+            for (QueryListenerEntry listenerEntry : classEntry.getValue().values()) {
+                Class<?> currentClass = regionClasses.get(listenerEntry.getRegionName());
+                if (currentClass == null || currentClass.isAssignableFrom(registeredClass)) {
+                    regionClasses.put(listenerEntry.getRegionName(), registeredClass);
+                    regionEntries.put(listenerEntry.getRegionName(), listenerEntry);
+                }
+            }
+        }
+
+        addSessionFactory(persister.getFactory());
+        DispatchEntry[] entries = new DispatchEntry[regionEntries.size()];
+        int index = 0;
+        for (QueryListenerEntry listenerEntry : regionEntries.values()) {
+            DynamicQueryCache queryCache =
+                    (DynamicQueryCache) persister.getFactory().getQueryCache(listenerEntry.getRegionName());
+            queryCache.addQuerySpaces(Arrays.asList(persister.getQuerySpaces()));
+            int[] propertyIndexes = null;
+            if (listenerEntry.getProperties().length > 0) {
+                propertyIndexes = new int[listenerEntry.getProperties().length];
+                for (int i = 0; i < propertyIndexes.length; i++) {
+                    String property = listenerEntry.getProperties()[i];
+                    propertyIndexes[i] = persister.getEntityMetamodel().getPropertyIndex(property);
+                }
+            }
+            entries[index++] = new DispatchEntry(listenerEntry, queryCache, propertyIndexes);
+        }
+        return entries;
+    }
+
+    private static class DispatchTable {
+
+        final int version;
+        final DispatchEntry[] entries;
+
+        DispatchTable(int version, DispatchEntry[] entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+
+    }
+
+    private static class DispatchEntry {
+
+        final QueryListenerEntry listenerEntry;
+        final DynamicQueryCache queryCache;
+        // indexes of properties used by handler, null if not defined
+        final int[] propertyIndexes;
+
+        DispatchEntry(QueryListenerEntry listenerEntry, DynamicQueryCache queryCache, int[] propertyIndexes) {
+            this.listenerEntry = listenerEntry;
+            this.queryCache = queryCache;
+            this.propertyIndexes = propertyIndexes;
+        }
+
+    }
+
+    private class UpdateTask implements Runnable {
+
+        private final DynamicQueryCache queryCache;
+        private final QueryListenerEntry listenerEntry;
+        private final ParamKey paramKey;
+        private final ResultUpdate update;
+
+        UpdateTask(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry,
+                        ParamKey paramKey, ResultUpdate update) {
+            this.queryCache = queryCache;
+            this.listenerEntry = listenerEntry;
+            this.paramKey = paramKey;
+            this.update = update;
+        }
+
+        @Override
+        public void run() {
+            applyUpdate(queryCache, listenerEntry, paramKey, update);
+        }
+
     }
 
 }
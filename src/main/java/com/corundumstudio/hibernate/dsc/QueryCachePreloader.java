@@ -0,0 +1,219 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams rows of grouped query and caches results of each parameter value
+ * in parallel batches. Batch holds at least <code>batchSize</code> rows,
+ * results of the same parameter value are never split. Amount of batches
+ * in progress is limited, so scan is paused while workers are busy.
+ *
+ */
+class QueryCachePreloader {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DynamicQueryCache queryCache;
+    private final SessionFactory sessionFactory;
+    private final PreloadCallback callback;
+    private final int threads;
+    private final int batchSize;
+    private final int maxRows;
+    private final Semaphore batchPermits;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+    /**
+     * @param maxRows - max amount of preloaded rows, <code>0</code> if unlimited
+     */
+    QueryCachePreloader(DynamicQueryCache queryCache, SessionFactory sessionFactory,
+                            PreloadCallback callback, int threads, int batchSize, int maxRows) {
+        this.queryCache = queryCache;
+        this.sessionFactory = sessionFactory;
+        this.callback = callback;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxRows = maxRows;
+        this.batchPermits = new Semaphore(threads * 2);
+    }
+
+    /**
+     * @return amount of preloaded results
+     */
+    long preload() {
+        final String regionName = queryCache.getRegion().getName();
+        final AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dsc-preload-" + regionName + "-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long startTime = System.nanoTime();
+        long results = 0;
+        long rows = 0;
+        try {
+            Session session = sessionFactory.openSession();
+            try {
+                ScrollableResults scroll = callback.createGroupedQuery(session).scroll(ScrollMode.FORWARD_ONLY);
+                try {
+                    Batch batch = new Batch();
+                    Object value = null;
+                    List<Object> group = null;
+                    while (failure.get() == null && scroll.next()) {
+                        Object[] row = scroll.get();
+                        if (row[0] == null) {
+                            continue;
+                        }
+                        if (group != null && !row[0].equals(value)) {
+                            batch.add(value, group);
+                            results++;
+                            rows += group.size();
+                            if (batch.rowCount >= batchSize) {
+                                submit(executor, batch);
+                                batch = new Batch();
+                            }
+                            group = null;
+                        }
+                        if (group == null) {
+                            value = row[0];
+                            group = new ArrayList<Object>();
+                        }
+                        group.add(getResultRow(row));
+                        if (isOverBudget(rows + group.size())) {
+                            // incomplete result can't be cached
+                            group = null;
+                            break;
+                        }
+                    }
+                    if (group != null) {
+                        batch.add(value, group);
+                        results++;
+                        rows += group.size();
+                    }
+                    if (!batch.values.isEmpty()) {
+                        submit(executor, batch);
+                    }
+                } finally {
+                    scroll.close();
+                }
+            } finally {
+                session.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Preload of " + regionName + " region has been interrupted", e);
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Preload of " + regionName + " region has been interrupted", e);
+        }
+        if (failure.get() != null) {
+            throw new HibernateException("Can't preload " + regionName + " region", failure.get());
+        }
+        log.info("Preloaded {} results with {} rows to {} region in {} ms", new Object[] {results, rows,
+                    regionName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)});
+        return results;
+    }
+
+    private boolean isOverBudget(long rows) {
+        if (maxRows > 0 && rows > maxRows) {
+            log.info("Preload of {} region stopped, max rows {} reached", queryCache.getRegion().getName(), maxRows);
+            return true;
+        }
+        return false;
+    }
+
+    private Object getResultRow(Object[] row) {
+        if (row.length == 2) {
+            return row[1];
+        }
+        Object[] result = new Object[row.length - 1];
+        System.arraycopy(row, 1, result, 0, result.length);
+        return result;
+    }
+
+    private void submit(ExecutorService executor, final Batch batch) throws InterruptedException {
+        batchPermits.acquire();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        load(batch);
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    batchPermits.release();
+                }
+            }
+        });
+    }
+
+    private void load(Batch batch) {
+        Session session = sessionFactory.openSession();
+        try {
+            for (int i = 0; i < batch.values.size(); i++) {
+                Object value = batch.values.get(i);
+                queryCache.preloadResult(callback.createCachedQuery(session, value), batch.results.get(i));
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static class Batch {
+
+        final List<Object> values = new ArrayList<Object>();
+        final List<List<Object>> results = new ArrayList<List<Object>>();
+        int rowCount;
+
+        void add(Object value, List<Object> result) {
+            values.add(value);
+            results.add(result);
+            rowCount += result.size();
+        }
+
+    }
+
+}
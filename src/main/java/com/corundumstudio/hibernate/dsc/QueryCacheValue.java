@@ -15,21 +15,98 @@
  */
 package com.corundumstudio.hibernate.dsc;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 import org.hibernate.cache.spi.QueryKey;
 import org.hibernate.type.Type;
 
-public class QueryCacheValue implements Serializable {
+/**
+ * Binds query parameters to cached query result. Externalized as shared
+ * {@link QueryShape} of the query plus parameter values of the key.
+ * Value read by {@link QueryCacheValueExternalizer} has only shape id,
+ * it's resolved by {@link DynamicQueryCache} before use.
+ *
+ */
+public class QueryCacheValue implements Externalizable {
 
-    private static final long serialVersionUID = 1949020485830737908L;
+    private static final long serialVersionUID = -6251093436651914040L;
 
-    private final QueryKey key;
-    private final Type[] returnTypes;
+    // null until value is resolved, published after other fields
+    private volatile QueryKey key;
+    private Type[] returnTypes;
+    private boolean ordered;
+    // created on first serialization
+    private transient QueryShape shape;
+    // values of unresolved key
+    private transient long shapeId;
+    private transient QueryShape.KeyValues keyValues;
+
+    /**
+     * Used by deserialization
+     */
+    public QueryCacheValue() {
+    }
 
     public QueryCacheValue(QueryKey key, Type[] returnTypes) {
+        this(key, returnTypes, false);
+    }
+
+    /**
+     * @param ordered - result is stored as {@link OrderedResultList}
+     */
+    QueryCacheValue(QueryKey key, Type[] returnTypes, boolean ordered) {
         this.key = key;
         this.returnTypes = returnTypes;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Unresolved value read by {@link QueryCacheValueExternalizer}
+     */
+    QueryCacheValue(long shapeId, boolean ordered, QueryShape.KeyValues keyValues) {
+        this.shapeId = shapeId;
+        this.ordered = ordered;
+        this.keyValues = keyValues;
+    }
+
+    boolean isResolved() {
+        return key != null;
+    }
+
+    long getShapeId() {
+        if (shape != null) {
+            return shape.getId();
+        }
+        return shapeId;
+    }
+
+    QueryShape.KeyValues getKeyValues() {
+        return keyValues;
+    }
+
+    /**
+     * Creates key of unresolved value, could be called concurrently
+     *
+     * @return <code>false</code> if values don't belong to the shape
+     */
+    boolean resolve(QueryShape queryShape) {
+        QueryKey resolvedKey = queryShape.createKey(keyValues);
+        if (resolvedKey == null) {
+            return false;
+        }
+        returnTypes = queryShape.getReturnTypes();
+        key = resolvedKey;
+        return true;
+    }
+
+    QueryShape getShape() {
+        if (shape == null) {
+            shape = QueryShape.valueOf(key, returnTypes);
+        }
+        return shape;
     }
 
     public QueryKey getKey() {
@@ -40,4 +117,27 @@ public class QueryCacheValue implements Serializable {
         return returnTypes;
     }
 
+    boolean isOrdered() {
+        return ordered;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        if (!isResolved()) {
+            throw new IOException("Unresolved value of shape " + shapeId + " can't be serialized");
+        }
+        QueryShape queryShape = getShape();
+        out.writeObject(queryShape);
+        out.writeBoolean(ordered);
+        queryShape.writeKey(out, key);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        shape = (QueryShape) in.readObject();
+        ordered = in.readBoolean();
+        key = shape.readKey(in);
+        returnTypes = shape.getReturnTypes();
+    }
+
 }
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.Set;
+
+import org.infinispan.marshall.AbstractExternalizer;
+
+/**
+ * Writes {@link QueryCacheValue} as region-scoped id of its {@link QueryShape}
+ * plus parameter values instead of the whole shape, which is mostly SQL and types
+ * metadata. Shape itself is published to the region once per node, value read by
+ * other node is resolved by its shape on first use. Should be registered
+ * in global serialization configuration of cache manager:
+ * <pre>
+ * &lt;serialization&gt;
+ *    &lt;advancedExternalizers&gt;
+ *       &lt;advancedExternalizer externalizerClass="com.corundumstudio.hibernate.dsc.QueryCacheValueExternalizer"/&gt;
+ *    &lt;/advancedExternalizers&gt;
+ * &lt;/serialization&gt;
+ * </pre>
+ *
+ * @see InfinispanQueryShapes
+ */
+public class QueryCacheValueExternalizer extends AbstractExternalizer<QueryCacheValue> {
+
+    private static final long serialVersionUID = 4325874105725372184L;
+
+    private static final int ID = 1652;
+
+    @Override
+    public Set<Class<? extends QueryCacheValue>> getTypeClasses() {
+        return Collections.<Class<? extends QueryCacheValue>>singleton(QueryCacheValue.class);
+    }
+
+    @Override
+    public Integer getId() {
+        return ID;
+    }
+
+    @Override
+    public void writeObject(ObjectOutput output, QueryCacheValue value) throws IOException {
+        output.writeLong(value.getShapeId());
+        output.writeBoolean(value.isOrdered());
+        if (value.isResolved()) {
+            value.getShape().writeKey(output, value.getKey());
+        } else {
+            writeKeyValues(output, value.getKeyValues());
+        }
+    }
+
+    private void writeKeyValues(ObjectOutput output, QueryShape.KeyValues values) throws IOException {
+        CompactSerializer.writeVarLong(output, values.positional.length);
+        for (Object value : values.positional) {
+            CompactSerializer.writeValue(output, value);
+        }
+        CompactSerializer.writeVarLong(output, values.named.length);
+        for (Object value : values.named) {
+            CompactSerializer.writeValue(output, value);
+        }
+        CompactSerializer.writeValue(output, values.firstRow);
+        CompactSerializer.writeValue(output, values.maxRows);
+    }
+
+    @Override
+    public QueryCacheValue readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+        long shapeId = input.readLong();
+        boolean ordered = input.readBoolean();
+        return new QueryCacheValue(shapeId, ordered, QueryShape.readKeyValues(input));
+    }
+
+}
@@ -15,17 +15,9 @@
  */
 package com.corundumstudio.hibernate.dsc;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
-import com.corundumstudio.concurrent.CompositeLock;
-import com.corundumstudio.concurrent.ConcurrentWeakLockMap;
+import com.corundumstudio.concurrent.StripedLock;
 
 /**
  * ListnerValue - object per query
@@ -35,29 +27,43 @@ import com.corundumstudio.concurrent.ConcurrentWeakLockMap;
  */
 class QueryListenerEntry {
 
+    private static final int LOCK_STRIPES = 256;
+
+    private final String regionName;
     private final CacheCallback<?> handler;
-    private final ConcurrentMap<String, ConcurrentWeakLockMap<Object>> paramLocks =
-                                                        new ConcurrentHashMap<String, ConcurrentWeakLockMap<Object>>();
+    private final String[] properties;
+    // null if result order isn't defined
+    private final ResultOrder resultOrder;
+    private final StripedLock paramLocks = new StripedLock(LOCK_STRIPES);
 
-    QueryListenerEntry(String regionName, CacheCallback<?> handler) {
+    QueryListenerEntry(String regionName, CacheCallback<?> handler, String[] properties, ResultOrder resultOrder) {
+        this.regionName = regionName;
         this.handler = handler;
+        this.properties = properties;
+        this.resultOrder = resultOrder;
+    }
+
+    Lock getLock(ParamKey paramKey) {
+        return paramLocks.getLock(paramKey);
+    }
+
+    /**
+     * @return lock of both keys, acquired in the same order for any keys order
+     */
+    Lock getLock(ParamKey paramKey, ParamKey otherParamKey) {
+        return paramLocks.getLock(paramKey, otherParamKey);
+    }
+
+    String[] getProperties() {
+        return properties;
+    }
+
+    ResultOrder getResultOrder() {
+        return resultOrder;
     }
 
-    Lock getLock(Map<String, Object> params) {
-        List<ReentrantLock> locks = new ArrayList<ReentrantLock>();
-        for (Entry<String, Object> paramEntry : params.entrySet()) {
-            ConcurrentWeakLockMap<Object> lockMap = paramLocks.get(paramEntry.getKey());
-            if (lockMap == null) {
-                lockMap = new ConcurrentWeakLockMap<Object>(16, 100);
-                ConcurrentWeakLockMap<Object> oldLock = paramLocks.putIfAbsent(paramEntry.getKey(), lockMap);
-                if (oldLock != null) {
-                    lockMap = oldLock;
-                }
-            }
-            ReentrantLock lock = lockMap.getLock(paramEntry.getValue());
-            locks.add(lock);
-        }
-        return new CompositeLock(locks);
+    String getRegionName() {
+        return regionName;
     }
 
     CacheCallback<Object> getHandler() {
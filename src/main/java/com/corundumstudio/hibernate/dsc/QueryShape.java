@@ -0,0 +1,339 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap;
+import org.hibernate.internal.util.collections.ConcurrentReferenceHashMap.ReferenceType;
+import org.hibernate.transform.CacheableResultTransformer;
+import org.hibernate.type.Type;
+
+/**
+ * Part of {@link QueryKey} which is the same for all cached results of a query:
+ * SQL, parameter types, filters and result transformer, plus query return types.
+ * Shapes are interned while they are used, so {@link QueryCacheValue} entries of
+ * the same query share one instance in memory and in serialization stream, while
+ * parameter values are written per entry. Unused shapes are collected along with
+ * their types and transformer.
+ * <p>
+ * Each shape has random id, {@link QueryCacheValueExternalizer} writes it instead
+ * of the shape, which is published to the region once by {@link InfinispanQueryShapes}.
+ *
+ */
+// TODO remove reflection when https://hibernate.onjira.com/browse/HHH-5881 will be resolved
+final class QueryShape implements Externalizable {
+
+    private static final long serialVersionUID = 8153472716305917421L;
+
+    private static final byte NULL_SET = 0;
+    private static final byte EMPTY_SET = 1;
+    private static final byte SERIALIZED_SET = 2;
+
+    private static final ConcurrentMap<QueryShape, QueryShape> SHAPES =
+                    new ConcurrentReferenceHashMap<QueryShape, QueryShape>(16, ReferenceType.WEAK, ReferenceType.WEAK);
+    private static final Random ID_GENERATOR = new Random();
+
+    private static final Field SQL_QUERY_STRING = getField("sqlQueryString");
+    private static final Field POSITIONAL_PARAMETER_TYPES = getField("positionalParameterTypes");
+    private static final Field POSITIONAL_PARAMETER_VALUES = getField("positionalParameterValues");
+    private static final Field NAMED_PARAMETERS = getField("namedParameters");
+    private static final Field FIRST_ROW = getField("firstRow");
+    private static final Field MAX_ROWS = getField("maxRows");
+    private static final Field TENANT_IDENTIFIER = getField("tenantIdentifier");
+    private static final Field FILTER_KEYS = getField("filterKeys");
+    private static final Field CUSTOM_TRANSFORMER = getField("customTransformer");
+    private static final Constructor<QueryKey> KEY_CONSTRUCTOR = getKeyConstructor();
+
+    private String sql;
+    private Type[] positionalTypes;
+    // sorted by name
+    private String[] paramNames;
+    private Type[] paramTypes;
+    private String tenantIdentifier;
+    private Set<?> filterKeys;
+    private CacheableResultTransformer transformer;
+    private Type[] returnTypes;
+    private int hashCode;
+    // isn't written, ids of the same query shape differ between nodes
+    private final long id = ID_GENERATOR.nextLong();
+
+    /**
+     * Used by deserialization
+     */
+    public QueryShape() {
+    }
+
+    private QueryShape(QueryKey key, Type[] returnTypes) {
+        Map<String, TypedValue> params = (Map<String, TypedValue>) get(NAMED_PARAMETERS, key);
+        if (params == null) {
+            params = Collections.emptyMap();
+        }
+        paramNames = params.keySet().toArray(new String[params.size()]);
+        Arrays.sort(paramNames);
+        paramTypes = new Type[paramNames.length];
+        for (int i = 0; i < paramNames.length; i++) {
+            paramTypes[i] = params.get(paramNames[i]).getType();
+        }
+        this.sql = (String) get(SQL_QUERY_STRING, key);
+        this.positionalTypes = (Type[]) get(POSITIONAL_PARAMETER_TYPES, key);
+        this.tenantIdentifier = (String) get(TENANT_IDENTIFIER, key);
+        this.filterKeys = (Set<?>) get(FILTER_KEYS, key);
+        this.transformer = (CacheableResultTransformer) get(CUSTOM_TRANSFORMER, key);
+        this.returnTypes = returnTypes;
+        this.hashCode = generateHashCode();
+    }
+
+    static QueryShape valueOf(QueryKey key, Type[] returnTypes) {
+        return intern(new QueryShape(key, returnTypes));
+    }
+
+    private static QueryShape intern(QueryShape shape) {
+        QueryShape current = SHAPES.putIfAbsent(shape, shape);
+        if (current != null) {
+            return current;
+        }
+        return shape;
+    }
+
+    Type[] getReturnTypes() {
+        return returnTypes;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Writes parameter values and row limits of query key
+     */
+    void writeKey(ObjectOutput out, QueryKey key) throws IOException {
+        Object[] positionalValues = (Object[]) get(POSITIONAL_PARAMETER_VALUES, key);
+        CompactSerializer.writeVarLong(out, positionalValues.length);
+        for (Object value : positionalValues) {
+            CompactSerializer.writeValue(out, value);
+        }
+        Map<String, TypedValue> params = (Map<String, TypedValue>) get(NAMED_PARAMETERS, key);
+        CompactSerializer.writeVarLong(out, paramNames.length);
+        for (String name : paramNames) {
+            CompactSerializer.writeValue(out, params.get(name).getValue());
+        }
+        CompactSerializer.writeValue(out, get(FIRST_ROW, key));
+        CompactSerializer.writeValue(out, get(MAX_ROWS, key));
+    }
+
+    QueryKey readKey(ObjectInput in) throws IOException, ClassNotFoundException {
+        KeyValues values = readKeyValues(in);
+        if (values.named.length != paramNames.length) {
+            throw new IOException("Query key has " + values.named.length + " parameters instead of "
+                                    + paramNames.length);
+        }
+        return createKey(values);
+    }
+
+    /**
+     * Reads values written by {@link #writeKey} without the shape
+     */
+    static KeyValues readKeyValues(ObjectInput in) throws IOException, ClassNotFoundException {
+        Object[] positionalValues = new Object[(int) CompactSerializer.readVarLong(in)];
+        for (int i = 0; i < positionalValues.length; i++) {
+            positionalValues[i] = CompactSerializer.readValue(in);
+        }
+        Object[] namedValues = new Object[(int) CompactSerializer.readVarLong(in)];
+        for (int i = 0; i < namedValues.length; i++) {
+            namedValues[i] = CompactSerializer.readValue(in);
+        }
+        Integer firstRow = (Integer) CompactSerializer.readValue(in);
+        Integer maxRows = (Integer) CompactSerializer.readValue(in);
+        return new KeyValues(positionalValues, namedValues, firstRow, maxRows);
+    }
+
+    /**
+     * @return <code>null</code> if values don't belong to the shape
+     */
+    QueryKey createKey(KeyValues values) {
+        if (values.named.length != paramNames.length) {
+            return null;
+        }
+        Map<String, TypedValue> params = new HashMap<String, TypedValue>();
+        for (int i = 0; i < paramNames.length; i++) {
+            params.put(paramNames[i], new TypedValue(paramTypes[i], values.named[i]));
+        }
+        try {
+            return KEY_CONSTRUCTOR.newInstance(sql, positionalTypes, values.positional, params,
+                                        values.firstRow, values.maxRows, filterKeys, tenantIdentifier, transformer);
+        } catch (InstantiationException e) {
+            throw new HibernateException(e);
+        } catch (IllegalAccessException e) {
+            throw new HibernateException(e);
+        } catch (InvocationTargetException e) {
+            throw new HibernateException(e.getCause());
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeObject(sql);
+        CompactSerializer.writeTypes(out, positionalTypes);
+        CompactSerializer.writeVarLong(out, paramNames.length);
+        for (int i = 0; i < paramNames.length; i++) {
+            out.writeUTF(paramNames[i]);
+            CompactSerializer.writeType(out, paramTypes[i]);
+        }
+        CompactSerializer.writeValue(out, tenantIdentifier);
+        if (filterKeys == null) {
+            out.writeByte(NULL_SET);
+        } else if (filterKeys.isEmpty()) {
+            out.writeByte(EMPTY_SET);
+        } else {
+            out.writeByte(SERIALIZED_SET);
+            out.writeObject(filterKeys);
+        }
+        out.writeObject(transformer);
+        CompactSerializer.writeTypes(out, returnTypes);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        sql = (String) in.readObject();
+        positionalTypes = CompactSerializer.readTypes(in);
+        int size = (int) CompactSerializer.readVarLong(in);
+        paramNames = new String[size];
+        paramTypes = new Type[size];
+        for (int i = 0; i < size; i++) {
+            paramNames[i] = in.readUTF().intern();
+            paramTypes[i] = CompactSerializer.readType(in);
+        }
+        tenantIdentifier = (String) CompactSerializer.readValue(in);
+        byte filterTag = in.readByte();
+        if (filterTag == EMPTY_SET) {
+            filterKeys = Collections.emptySet();
+        } else if (filterTag == SERIALIZED_SET) {
+            filterKeys = (Set<?>) in.readObject();
+        }
+        transformer = (CacheableResultTransformer) in.readObject();
+        returnTypes = CompactSerializer.readTypes(in);
+        hashCode = generateHashCode();
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        return intern(this);
+    }
+
+    private int generateHashCode() {
+        int result = sql.hashCode();
+        result = 31 * result + Arrays.hashCode(paramNames);
+        result = 31 * result + Arrays.hashCode(returnTypes);
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryShape)) {
+            return false;
+        }
+        QueryShape other = (QueryShape) obj;
+        return hashCode == other.hashCode
+                && sql.equals(other.sql)
+                && Arrays.equals(positionalTypes, other.positionalTypes)
+                && Arrays.equals(paramNames, other.paramNames)
+                && Arrays.equals(paramTypes, other.paramTypes)
+                && isEqual(tenantIdentifier, other.tenantIdentifier)
+                && isEqual(filterKeys, other.filterKeys)
+                && isEqual(transformer, other.transformer)
+                && Arrays.equals(returnTypes, other.returnTypes);
+    }
+
+    private static boolean isEqual(Object value, Object otherValue) {
+        return value == null ? otherValue == null : value.equals(otherValue);
+    }
+
+    private static Field getField(String name) {
+        try {
+            Field field = QueryKey.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unsupported QueryKey version", e);
+        }
+    }
+
+    private static Constructor<QueryKey> getKeyConstructor() {
+        try {
+            Constructor<QueryKey> constructor = QueryKey.class.getDeclaredConstructor(String.class, Type[].class,
+                                Object[].class, Map.class, Integer.class, Integer.class, Set.class,
+                                String.class, CacheableResultTransformer.class);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Unsupported QueryKey version", e);
+        }
+    }
+
+    private static Object get(Field field, QueryKey key) {
+        try {
+            return field.get(key);
+        } catch (IllegalAccessException e) {
+            throw new HibernateException(e);
+        }
+    }
+
+    /**
+     * Parameter values and row limits of query key read without its shape
+     */
+    static class KeyValues {
+
+        final Object[] positional;
+        // ordered by parameter name
+        final Object[] named;
+        final Integer firstRow;
+        final Integer maxRows;
+
+        KeyValues(Object[] positional, Object[] named, Integer firstRow, Integer maxRows) {
+            this.positional = positional;
+            this.named = named;
+            this.firstRow = firstRow;
+            this.maxRows = maxRows;
+        }
+
+    }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Serializable;
+
+/**
+ * Region key of {@link QueryShape} published by {@link InfinispanQueryShapes}
+ *
+ */
+class QueryShapeKey implements Serializable {
+
+    private static final long serialVersionUID = -2958361120943846337L;
+
+    private final long id;
+
+    QueryShapeKey(long id) {
+        this.id = id;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryShapeKey)) {
+            return false;
+        }
+        return id == ((QueryShapeKey) obj).id;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryShapeKey [id=" + id + "]";
+    }
+
+}
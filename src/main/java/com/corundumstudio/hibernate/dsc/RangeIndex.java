@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interval trees of cached query ranges per registered {@link RangeParameter}.
+ * Index is maintained the same way as {@link ParamElementIndex}.
+ *
+ */
+class RangeIndex {
+
+    private final ConcurrentMap<RangeParameter, IntervalTree<ParamKey>> trees =
+                        new ConcurrentHashMap<RangeParameter, IntervalTree<ParamKey>>();
+
+    boolean isEmpty() {
+        return trees.isEmpty();
+    }
+
+    /**
+     * Queries cached before registration aren't indexed,
+     * so they should be reloaded, see {@link #isIndexed}
+     */
+    void register(RangeParameter range) {
+        if (!trees.containsKey(range)) {
+            trees.putIfAbsent(range, new IntervalTree<ParamKey>(range.isLowerInclusive(), range.isUpperInclusive()));
+        }
+    }
+
+    void add(ParamKey paramKey) {
+        for (Entry<RangeParameter, IntervalTree<ParamKey>> entry : trees.entrySet()) {
+            RangeParameter range = entry.getKey();
+            if (range.isDefinedBy(paramKey)) {
+                entry.getValue().add(paramKey, getBound(paramKey, range.getLowerName()),
+                                        getBound(paramKey, range.getUpperName()));
+            }
+        }
+    }
+
+    private Comparable<Object> getBound(ParamKey paramKey, String name) {
+        if (name == null) {
+            return null;
+        }
+        return (Comparable<Object>) paramKey.getParameter(name);
+    }
+
+    void remove(ParamKey paramKey) {
+        for (Entry<RangeParameter, IntervalTree<ParamKey>> entry : trees.entrySet()) {
+            if (entry.getKey().isDefinedBy(paramKey)) {
+                entry.getValue().remove(paramKey);
+            }
+        }
+    }
+
+    /**
+     * Removes all keys, registered ranges are kept
+     */
+    void clear() {
+        for (IntervalTree<ParamKey> tree : trees.values()) {
+            tree.clear();
+        }
+    }
+
+    void addParamKeysTo(Set<ParamKey> result) {
+        for (IntervalTree<ParamKey> tree : trees.values()) {
+            result.addAll(tree.values());
+        }
+    }
+
+    /**
+     * @return <code>false</code> if key has registered range
+     *          but isn't indexed, so its result can't be maintained
+     */
+    boolean isIndexed(ParamKey paramKey) {
+        for (Entry<RangeParameter, IntervalTree<ParamKey>> entry : trees.entrySet()) {
+            if (entry.getKey().isDefinedBy(paramKey) && !entry.getValue().contains(paramKey)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return keys of queries with the same parameters, whose ranges contain the values
+     */
+    List<ParamKey> find(Map<String, Object> params, Map<String, Object> elementParams,
+                            Map<RangeParameter, Comparable<Object>> rangeParams) {
+        Iterator<Entry<RangeParameter, Comparable<Object>>> iterator = rangeParams.entrySet().iterator();
+        Entry<RangeParameter, Comparable<Object>> first = iterator.next();
+        IntervalTree<ParamKey> tree = trees.get(first.getKey());
+        if (tree == null) {
+            return new ArrayList<ParamKey>(0);
+        }
+        List<ParamKey> result = tree.find(first.getValue());
+        for (Iterator<ParamKey> keys = result.iterator(); keys.hasNext();) {
+            if (!matches(keys.next(), params, elementParams, rangeParams)) {
+                keys.remove();
+            }
+        }
+        return result;
+    }
+
+    private boolean matches(ParamKey paramKey, Map<String, Object> params, Map<String, Object> elementParams,
+                            Map<RangeParameter, Comparable<Object>> rangeParams) {
+        List<String> boundNames = new ArrayList<String>(rangeParams.size() * 2);
+        for (Entry<RangeParameter, Comparable<Object>> entry : rangeParams.entrySet()) {
+            RangeParameter range = entry.getKey();
+            if (!range.isDefinedBy(paramKey) || !range.contains(paramKey, entry.getValue())) {
+                return false;
+            }
+            if (range.getLowerName() != null) {
+                boundNames.add(range.getLowerName());
+            }
+            if (range.getUpperName() != null) {
+                boundNames.add(range.getUpperName());
+            }
+        }
+        return paramKey.matches(params, elementParams, boundNames);
+    }
+
+}
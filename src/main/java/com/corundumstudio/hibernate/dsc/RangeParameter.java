@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Pair of query parameters which define range of entity value,
+ * see {@link ParamsCommand#setParameterRange}
+ *
+ */
+final class RangeParameter {
+
+    // null if unbounded
+    private final String lowerName;
+    private final boolean lowerInclusive;
+    // null if unbounded
+    private final String upperName;
+    private final boolean upperInclusive;
+
+    RangeParameter(String lowerName, boolean lowerInclusive, String upperName, boolean upperInclusive) {
+        if (lowerName == null && upperName == null) {
+            throw new IllegalArgumentException("Range should have at least one bound parameter");
+        }
+        this.lowerName = lowerName;
+        this.lowerInclusive = lowerInclusive;
+        this.upperName = upperName;
+        this.upperInclusive = upperInclusive;
+    }
+
+    String getLowerName() {
+        return lowerName;
+    }
+
+    boolean isLowerInclusive() {
+        return lowerInclusive;
+    }
+
+    String getUpperName() {
+        return upperName;
+    }
+
+    boolean isUpperInclusive() {
+        return upperInclusive;
+    }
+
+    /**
+     * @return <code>true</code> if key has all bound parameters.
+     *          Range with <code>null</code> bound doesn't match anything in SQL
+     */
+    boolean isDefinedBy(ParamKey paramKey) {
+        return (lowerName == null || paramKey.getParameter(lowerName) != null)
+                && (upperName == null || paramKey.getParameter(upperName) != null);
+    }
+
+    /**
+     * @return <code>true</code> if range of the key contains the value
+     */
+    boolean contains(ParamKey paramKey, Comparable<Object> value) {
+        if (lowerName != null) {
+            int res = value.compareTo(paramKey.getParameter(lowerName));
+            if (res < 0 || res == 0 && !lowerInclusive) {
+                return false;
+            }
+        }
+        if (upperName != null) {
+            int res = value.compareTo(paramKey.getParameter(upperName));
+            if (res > 0 || res == 0 && !upperInclusive) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = lowerName == null ? 0 : lowerName.hashCode();
+        result = 31 * result + (upperName == null ? 0 : upperName.hashCode());
+        return 31 * result + (lowerInclusive ? 2 : 0) + (upperInclusive ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RangeParameter)) {
+            return false;
+        }
+        RangeParameter other = (RangeParameter) obj;
+        return (lowerName == null ? other.lowerName == null : lowerName.equals(other.lowerName))
+                && (upperName == null ? other.upperName == null : upperName.equals(other.upperName))
+                && lowerInclusive == other.lowerInclusive
+                && upperInclusive == other.upperInclusive;
+    }
+
+    @Override
+    public String toString() {
+        return (lowerInclusive ? "[" : "(") + lowerName + ", " + upperName + (upperInclusive ? "]" : ")");
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Defines how {@link DynamicQueryCache#get} keeps QueryCacheValue entry
+ * of cached query alive. QueryCacheValue is required to update query result dynamically.
+ *
+ */
+public enum ReadMode {
+
+    /**
+     * Touch QueryCacheValue entry on every cache hit. Each hit costs two region lookups.
+     */
+    TOUCH,
+
+    /**
+     * Touch QueryCacheValue entry on every N-th cache hit only,
+     * see {@link DynamicQueryCacheSettings#TOUCH_SAMPLE_RATE}.
+     * Region LRU eviction can evict QueryCacheValue entry of hot query
+     * between touches, so its result isn't updated anymore. Use it only
+     * with region without maxEntries eviction.
+     */
+    SAMPLED,
+
+    /**
+     * Never touch QueryCacheValue entry. Use it only if region expiration
+     * and eviction can't evict QueryCacheValue entry before query result,
+     * for example region without maxIdle expiration and maxEntries eviction.
+     */
+    NONE
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Query results region with atomic conditional replace.
+ * Custom region implementations may implement it to enable
+ * optimistic result updates, Infinispan regions are detected automatically.
+ *
+ */
+public interface ReplaceableRegion {
+
+    /**
+     * Replaces the value only if currently mapped to <code>oldValue</code>.
+     * Expected value may be a token, so it's compared
+     * as <code>oldValue.equals(currentValue)</code>
+     *
+     * @return <code>true</code> if the value was replaced
+     */
+    boolean replace(Object key, Object oldValue, Object newValue);
+
+}
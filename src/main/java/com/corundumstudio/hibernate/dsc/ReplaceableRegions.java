@@ -0,0 +1,68 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves conditional replace support of region provider
+ *
+ */
+class ReplaceableRegions {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplaceableRegions.class);
+
+    /**
+     * @return <code>null</code> if region provider doesn't support conditional replace
+     */
+    static ReplaceableRegion valueOf(QueryResultsRegion region) {
+        if (region instanceof ReplaceableRegion) {
+            return (ReplaceableRegion) region;
+        }
+        ConcurrentMap<Object, Object> cache = getInfinispanCache(region);
+        if (cache != null) {
+            return InfinispanReplaceableRegion.create(cache);
+        }
+        return null;
+    }
+
+    /**
+     * hibernate-infinispan is optional dependency, so its region is accessed reflectively:
+     * region.getCacheAdapter().getCache()
+     */
+    static ConcurrentMap<Object, Object> getInfinispanCache(QueryResultsRegion region) {
+        try {
+            Method adapterMethod = region.getClass().getMethod("getCacheAdapter");
+            Object adapter = adapterMethod.invoke(region);
+            Method cacheMethod = adapterMethod.getReturnType().getMethod("getCache");
+            Object cache = cacheMethod.invoke(adapter);
+            if (cache instanceof ConcurrentMap) {
+                return (ConcurrentMap<Object, Object>) cache;
+            }
+        } catch (NoSuchMethodException e) {
+            // not an Infinispan region
+        } catch (Exception e) {
+            log.warn("Can't access cache of region: " + region.getName(), e);
+        }
+        return null;
+    }
+
+}
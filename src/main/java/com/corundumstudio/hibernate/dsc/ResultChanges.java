@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesced changes of single cached query result.
+ * Add and remove of the same row cancel each other,
+ * so only net changes are applied to the cache.
+ *
+ * Not thread safe.
+ *
+ */
+class ResultChanges {
+
+    private static final byte ADD = 0;
+    private static final byte REMOVE = 1;
+    private static final byte REMOVE_ADD = 2;
+
+    private final Map<Object, Change> changes = new LinkedHashMap<Object, Change>();
+    // disassembled row -> sequence of its removal
+    private final Map<Object, Integer> removedValues = new LinkedHashMap<Object, Integer>();
+    private int sequence;
+    private boolean clear;
+    // null if result isn't aggregate
+    private AggregateChange aggregate;
+
+    void add(InsertOrDeleteCommand command) {
+        if (command.getAggregateFunction() != null) {
+            getAggregate(command.getAggregateFunction()).add(command.getResult());
+        } else {
+            add(command.getResult(), command.isUniqueResult());
+        }
+    }
+
+    void remove(InsertOrDeleteCommand command) {
+        if (command.getAggregateFunction() != null) {
+            getAggregate(command.getAggregateFunction()).remove(command.getResult());
+        } else {
+            remove(command.getResult());
+        }
+    }
+
+    private AggregateChange getAggregate(AggregateFunction function) {
+        if (aggregate == null) {
+            aggregate = new AggregateChange(function);
+        } else if (aggregate.getFunction() != function) {
+            throw new IllegalStateException("Different aggregate functions for the same query: "
+                                                + aggregate.getFunction() + ", " + function);
+        }
+        return aggregate;
+    }
+
+    /**
+     * @return aggregate change or <code>null</code> if result isn't aggregate
+     */
+    AggregateChange getAggregate() {
+        return aggregate;
+    }
+
+    void add(Object row, boolean uniqueResult) {
+        if (uniqueResult) {
+            clear = true;
+            changes.clear();
+            removedValues.clear();
+        }
+        Object key = RowKey.of(row);
+        Change change = changes.get(key);
+        if (change == null) {
+            changes.put(key, new Change(ADD, row, ++sequence));
+        } else if (change.state == REMOVE) {
+            change.state = REMOVE_ADD;
+            change.row = row;
+            change.sequence = ++sequence;
+        }
+    }
+
+    void remove(Object row) {
+        Object key = RowKey.of(row);
+        Change change = changes.get(key);
+        if (change == null) {
+            changes.put(key, new Change(REMOVE, row, ++sequence));
+        } else if (change.state == ADD) {
+            changes.remove(key);
+        } else if (change.state == REMOVE_ADD) {
+            change.state = REMOVE;
+        }
+    }
+
+    /**
+     * Removes already disassembled row. It cancels rows added before
+     * if their disassembled form is equal, see {@link #isRemovedAfter}
+     */
+    void removeValue(Object value) {
+        removedValues.put(RowKey.of(value), ++sequence);
+    }
+
+    boolean isEmpty() {
+        return !clear && changes.isEmpty() && removedValues.isEmpty() && aggregate == null;
+    }
+
+    /**
+     * @return <code>true</code> if result should be cleared before other changes
+     */
+    boolean isClear() {
+        return clear;
+    }
+
+    /**
+     * @return disassembled rows to remove
+     */
+    List<Object> getRemovedValues() {
+        List<Object> result = new ArrayList<Object>(removedValues.size());
+        for (Object value : removedValues.keySet()) {
+            result.add(value instanceof RowKey ? ((RowKey) value).getRow() : value);
+        }
+        return result;
+    }
+
+    /**
+     * @param index - index of row in {@link #getAddedRows()}
+     * @param value - disassembled form of the row
+     * @return <code>true</code> if the row was removed by {@link #removeValue} after its addition
+     */
+    boolean isRemovedAfter(int index, Object value) {
+        Integer removal = removedValues.get(RowKey.of(value));
+        if (removal == null) {
+            return false;
+        }
+        int i = 0;
+        for (Change change : changes.values()) {
+            if (change.state != REMOVE && i++ == index) {
+                return removal > change.sequence;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return rows to remove, should be applied before added rows
+     */
+    List<Object> getRemovedRows() {
+        List<Object> result = new ArrayList<Object>();
+        for (Change change : changes.values()) {
+            if (change.state != ADD) {
+                result.add(change.row);
+            }
+        }
+        return result;
+    }
+
+    List<Object> getAddedRows() {
+        List<Object> result = new ArrayList<Object>();
+        for (Change change : changes.values()) {
+            if (change.state != REMOVE) {
+                result.add(change.row);
+            }
+        }
+        return result;
+    }
+
+    private static class Change {
+
+        byte state;
+        Object row;
+        int sequence;
+
+        Change(byte state, Object row, int sequence) {
+            this.state = state;
+            this.row = row;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Immutable log of changes made to cached query result since its last compaction.
+ * Every change has an absolute sequence number, so compacted {@link ResultList}
+ * knows which changes are already applied to it.
+ *
+ */
+class ResultDelta implements Serializable {
+
+    private static final long serialVersionUID = -1405768947208286374L;
+
+    private static final byte ADD = 0;
+    private static final byte CLEAR = 1;
+    private static final byte REMOVE = 2;
+
+    private static final Random ID_GENERATOR = new Random();
+
+    private final long id;
+    private final long offset;
+    private final byte[] ops;
+    private final Object[] rows;
+    // last result built by applyTo, shared by readers of the same base
+    private transient volatile MergedResult merged;
+
+    ResultDelta() {
+        this(ID_GENERATOR.nextLong(), 0, new byte[0], new Object[0]);
+    }
+
+    private ResultDelta(long id, long offset, byte[] ops, Object[] rows) {
+        this.id = id;
+        this.offset = offset;
+        this.ops = ops;
+        this.rows = rows;
+    }
+
+    /**
+     * @param clear - clear result before other changes
+     * @param removedRows - rows to remove
+     * @param addedRows - rows to add after removal
+     * @return new delta with the changes appended
+     */
+    ResultDelta append(boolean clear, List<Object> removedRows, List<Object> addedRows) {
+        int count = (clear ? 1 : 0) + removedRows.size() + addedRows.size();
+        byte[] newOps = new byte[ops.length + count];
+        System.arraycopy(ops, 0, newOps, 0, ops.length);
+        Object[] newRows = new Object[rows.length + count];
+        System.arraycopy(rows, 0, newRows, 0, rows.length);
+        int index = ops.length;
+        if (clear) {
+            newOps[index++] = CLEAR;
+        }
+        for (Object row : removedRows) {
+            newOps[index] = REMOVE;
+            newRows[index++] = row;
+        }
+        for (Object row : addedRows) {
+            newOps[index] = ADD;
+            newRows[index++] = row;
+        }
+        return new ResultDelta(id, offset, newOps, newRows);
+    }
+
+    int size() {
+        return ops.length;
+    }
+
+    private long getAppliedChanges(ResultList base) {
+        if (base.getDeltaId() == id) {
+            return base.getAppliedChanges();
+        }
+        return 0;
+    }
+
+    /**
+     * @param base - cached result
+     * @return <code>false</code> if delta has been trimmed after changes
+     *          not yet applied to <code>base</code>
+     */
+    boolean canApplyTo(ResultList base) {
+        return getAppliedChanges(base) >= offset;
+    }
+
+    /**
+     * @param base - cached result
+     * @return new cached result with all changes applied, it's reused
+     *          by subsequent calls with the same <code>base</code>, so it shouldn't be modified
+     */
+    ResultList applyTo(ResultList base) {
+        MergedResult last = merged;
+        if (last != null && last.base == base) {
+            return last.result;
+        }
+        long applied = getAppliedChanges(base);
+        ResultList result = base.copy();
+        for (int i = (int) Math.max(0, applied - offset); i < ops.length; i++) {
+            switch (ops[i]) {
+            case CLEAR:
+                result.clearRows();
+                break;
+            case REMOVE:
+                result.removeRow(rows[i]);
+                break;
+            default:
+                result.addRow(rows[i]);
+            }
+        }
+        result.markApplied(id, offset + ops.length);
+        merged = new MergedResult(base, result);
+        return result;
+    }
+
+    /**
+     * @param compacted - result with applied changes
+     * @return delta without changes already applied to <code>compacted</code>
+     */
+    ResultDelta trim(ResultList compacted) {
+        if (compacted.getDeltaId() != id) {
+            return this;
+        }
+        int count = (int) Math.min(ops.length, Math.max(0, compacted.getAppliedChanges() - offset));
+        byte[] newOps = new byte[ops.length - count];
+        System.arraycopy(ops, count, newOps, 0, newOps.length);
+        Object[] newRows = new Object[rows.length - count];
+        System.arraycopy(rows, count, newRows, 0, newRows.length);
+        return new ResultDelta(id, offset + count, newOps, newRows);
+    }
+
+    /**
+     * Deltas are equal if they contain the same changes of the same log,
+     * rows are not compared, so conditional region replace costs O(1).
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ResultDelta)) {
+            return false;
+        }
+        ResultDelta other = (ResultDelta) obj;
+        return id == other.id && offset == other.offset && ops.length == other.ops.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32)) + 31 * (int) (offset + ops.length);
+    }
+
+    private static class MergedResult {
+
+        final ResultList base;
+        final ResultList result;
+
+        MergedResult(ResultList base, ResultList result) {
+            this.base = base;
+            this.result = result;
+        }
+
+    }
+
+}
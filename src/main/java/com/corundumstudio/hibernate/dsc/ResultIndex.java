@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local index of entity ids to cached queries whose results contain the entity,
+ * so deleted entity is removed from queries its {@link CacheCallback} doesn't
+ * compute parameters of anymore. Only results of entity type are indexed,
+ * scalar and aggregate results are maintained by callback only.
+ * Entries of query are dropped when its region entry is removed.
+ *
+ */
+class ResultIndex {
+
+    private final ParamKeyIndex<EntityId> index = new ParamKeyIndex<EntityId>();
+    // query -> ids indexed for it
+    private final ConcurrentMap<ParamKey, ConcurrentMap<EntityId, Boolean>> queryIds =
+                        new ConcurrentHashMap<ParamKey, ConcurrentMap<EntityId, Boolean>>();
+
+    /**
+     * @param id - disassembled entity id
+     */
+    void add(String entityName, Object id, ParamKey paramKey) {
+        EntityId entityId = new EntityId(entityName, id);
+        ConcurrentMap<EntityId, Boolean> ids = queryIds.get(paramKey);
+        if (ids == null) {
+            ids = new ConcurrentHashMap<EntityId, Boolean>();
+            ConcurrentMap<EntityId, Boolean> oldIds = queryIds.putIfAbsent(paramKey, ids);
+            if (oldIds != null) {
+                ids = oldIds;
+            }
+        }
+        ids.put(entityId, Boolean.TRUE);
+        index.add(entityId, paramKey);
+    }
+
+    void remove(String entityName, Object id, ParamKey paramKey) {
+        EntityId entityId = new EntityId(entityName, id);
+        index.remove(entityId, paramKey);
+        ConcurrentMap<EntityId, Boolean> ids = queryIds.get(paramKey);
+        if (ids != null) {
+            ids.remove(entityId);
+        }
+    }
+
+    /**
+     * Removes all entries of query
+     */
+    void remove(ParamKey paramKey) {
+        ConcurrentMap<EntityId, Boolean> ids = queryIds.remove(paramKey);
+        if (ids == null) {
+            return;
+        }
+        for (EntityId entityId : ids.keySet()) {
+            index.remove(entityId, paramKey);
+        }
+    }
+
+    void clear() {
+        queryIds.clear();
+        index.clear();
+    }
+
+    void addParamKeysTo(Set<ParamKey> result) {
+        result.addAll(queryIds.keySet());
+    }
+
+    Set<ParamKey> get(String entityName, Object id) {
+        return index.get(new EntityId(entityName, id));
+    }
+
+    private static class EntityId {
+
+        private final String entityName;
+        private final Object id;
+
+        EntityId(String entityName, Object id) {
+            this.entityName = entityName;
+            this.id = RowKey.of(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * entityName.hashCode() + id.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EntityId)) {
+                return false;
+            }
+            EntityId other = (EntityId) obj;
+            return entityName.equals(other.entityName) && id.equals(other.id);
+        }
+
+    }
+
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cached query result. As a list it looks like the one stored by
+ * {@link org.hibernate.cache.internal.StandardQueryCache}: timestamp goes first,
+ * disassembled rows go next. Rows are changed only through row methods,
+ * which are synchronized, because local regions may share the same instance
+ * between readers and writers. Result is externalized with compact row encoding
+ * (see {@link CompactSerializer}), subclasses should have public no-arg constructor.
+ *
+ */
+abstract class ResultList extends AbstractList<Object> implements Externalizable {
+
+    private static final long serialVersionUID = 6417046932512337718L;
+
+    private static final Random ID_GENERATOR = new Random();
+
+    private Long timestamp;
+    // distinguishes results loaded in the same timestamp bucket, kept by copies
+    private long loadId;
+    // delta compaction state, see ResultDelta
+    private long deltaId;
+    private long appliedChanges;
+    // incremented on optimistic update
+    private long version;
+
+    ResultList(Long timestamp) {
+        this.timestamp = timestamp;
+        this.loadId = ID_GENERATOR.nextLong();
+    }
+
+    /**
+     * Used by deserialization
+     */
+    ResultList() {
+    }
+
+    Long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param row - disassembled row
+     * @return <code>false</code> if row hasn't been added
+     */
+    abstract boolean addRow(Object row);
+
+    /**
+     * @param row - disassembled row
+     * @return <code>false</code> if row hasn't been found
+     */
+    abstract boolean removeRow(Object row);
+
+    /**
+     * @param row - disassembled row
+     */
+    abstract boolean containsRow(Object row);
+
+    abstract void clearRows();
+
+    /**
+     * Applies row changes at once, so readers don't see them partially applied
+     *
+     * @return <code>true</code> if result has been modified
+     */
+    synchronized boolean applyRows(boolean clear, List<Object> removedRows, List<Object> addedRows) {
+        boolean modified = false;
+        if (clear && rowCount() > 0) {
+            clearRows();
+            modified = true;
+        }
+        for (Object row : removedRows) {
+            modified |= removeRow(row);
+        }
+        for (Object row : addedRows) {
+            modified |= addRow(row);
+        }
+        return modified;
+    }
+
+    /**
+     * @return <code>true</code> if result can't be used anymore and should be reloaded
+     */
+    boolean isDrained() {
+        return false;
+    }
+
+    abstract int rowCount();
+
+    /**
+     * @return copy of rows
+     */
+    abstract Object[] toRowArray();
+
+    /**
+     * @return list of the same type with the same rows
+     */
+    abstract ResultList copy();
+
+    long getDeltaId() {
+        return deltaId;
+    }
+
+    long getAppliedChanges() {
+        return appliedChanges;
+    }
+
+    void markApplied(long deltaId, long appliedChanges) {
+        this.deltaId = deltaId;
+        this.appliedChanges = appliedChanges;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void incrementVersion() {
+        version++;
+    }
+
+    ResultList copyState(ResultList source) {
+        loadId = source.loadId;
+        deltaId = source.deltaId;
+        appliedChanges = source.appliedChanges;
+        version = source.version;
+        return this;
+    }
+
+    /**
+     * @return expected value of conditional region replace, it's equal
+     *          only to the result of the same load with the same state
+     */
+    ReplaceToken replaceToken() {
+        return new ReplaceToken(this);
+    }
+
+    @Override
+    public final synchronized void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(timestamp);
+        out.writeLong(loadId);
+        CompactSerializer.writeVarLong(out, deltaId);
+        CompactSerializer.writeVarLong(out, appliedChanges);
+        CompactSerializer.writeVarLong(out, version);
+        writeRows(out);
+    }
+
+    @Override
+    public final void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        timestamp = in.readLong();
+        loadId = in.readLong();
+        deltaId = CompactSerializer.readVarLong(in);
+        appliedChanges = CompactSerializer.readVarLong(in);
+        version = CompactSerializer.readVarLong(in);
+        readRows(in);
+    }
+
+    /**
+     * Called under result lock
+     */
+    abstract void writeRows(ObjectOutput out) throws IOException;
+
+    abstract void readRows(ObjectInput in) throws IOException, ClassNotFoundException;
+
+    @Override
+    public Object get(int index) {
+        if (index == 0) {
+            return timestamp;
+        }
+        return toRowArray()[index - 1];
+    }
+
+    @Override
+    public int size() {
+        return rowCount() + 1;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        Object[] rows = toRowArray();
+        Object[] values = new Object[rows.length + 1];
+        values[0] = timestamp;
+        System.arraycopy(rows, 0, values, 1, rows.length);
+        return Arrays.asList(values).iterator();
+    }
+
+    /**
+     * Identifies result load and its state
+     */
+    static class ReplaceToken implements Serializable {
+
+        private static final long serialVersionUID = -6102566301658424394L;
+
+        private final long timestamp;
+        private final long loadId;
+        private final long deltaId;
+        private final long appliedChanges;
+        private final long version;
+        private final transient ResultList result;
+
+        ReplaceToken(ResultList result) {
+            this.result = result;
+            this.timestamp = result.timestamp;
+            this.loadId = result.loadId;
+            this.deltaId = result.deltaId;
+            this.appliedChanges = result.appliedChanges;
+            this.version = result.version;
+        }
+
+        /**
+         * Results are equal if they have the same origin and state.
+         * Rows are not compared, so conditional region replace costs O(1).
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof ResultHolder) {
+                obj = ((ResultHolder) obj).getResultList();
+            }
+            if (obj instanceof ResultList) {
+                obj = new ReplaceToken((ResultList) obj);
+            }
+            if (!(obj instanceof ReplaceToken)) {
+                return false;
+            }
+            ReplaceToken other = (ReplaceToken) obj;
+            return timestamp == other.timestamp
+                    && loadId == other.loadId
+                    && deltaId == other.deltaId
+                    && appliedChanges == other.appliedChanges
+                    && version == other.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (loadId ^ (loadId >>> 32)) + 31 * (int) (version ^ (version >>> 32));
+        }
+
+        /**
+         * @return result the token was taken from, <code>null</code> after deserialization
+         */
+        ResultList getResult() {
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+
+/**
+ * Row changes of cached result sent to other nodes instead of whole result.
+ * Each node merges them into its own copy of {@link DeltaAwareResult} under entry lock.
+ * Node without result copy, or with copy which strict delta doesn't match,
+ * or with copy cached before result order registration, gets empty
+ * {@link DeltaAwareResult}, so the result is reloaded on next query.
+ *
+ */
+public class ResultListDelta implements Delta, Externalizable {
+
+    private static final long serialVersionUID = 4195640927315096873L;
+
+    private static final int CLEAR = 1;
+    private static final int STRICT = 2;
+    private static final int REPLACEMENT = 4;
+
+    // replaces whole result, null if rows are changed
+    private ResultList replacement;
+    private boolean clear;
+    private List<Object> removedRows;
+    private List<Object> addedRows;
+    // all removed rows should be found
+    private boolean strict;
+
+    ResultListDelta(ResultList replacement, boolean clear,
+                        List<Object> removedRows, List<Object> addedRows, boolean strict) {
+        this.replacement = replacement;
+        this.clear = clear;
+        this.removedRows = removedRows;
+        this.addedRows = addedRows;
+        this.strict = strict;
+    }
+
+    /**
+     * Used by deserialization
+     */
+    public ResultListDelta() {
+    }
+
+    @Override
+    public DeltaAware merge(DeltaAware other) {
+        if (replacement != null) {
+            return new DeltaAwareResult(replacement.copy().copyState(replacement));
+        }
+        ResultList result = null;
+        if (other instanceof DeltaAwareResult) {
+            result = ((DeltaAwareResult) other).getResultList();
+        }
+        if (result == null) {
+            return new DeltaAwareResult(null);
+        }
+        if (!addedRows.isEmpty()
+                && (addedRows.get(0) instanceof OrderedRow) != (result instanceof OrderedResultList)) {
+            return new DeltaAwareResult(null);
+        }
+        synchronized (result) {
+            if (strict) {
+                for (Object row : removedRows) {
+                    if (!result.containsRow(row)) {
+                        return new DeltaAwareResult(null);
+                    }
+                }
+            }
+            if (result.applyRows(clear, removedRows, addedRows)) {
+                result.incrementVersion();
+            }
+        }
+        return other;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        int flags = 0;
+        if (clear) {
+            flags |= CLEAR;
+        }
+        if (strict) {
+            flags |= STRICT;
+        }
+        if (replacement != null) {
+            flags |= REPLACEMENT;
+        }
+        out.writeByte(flags);
+        if (replacement != null) {
+            out.writeObject(replacement);
+            return;
+        }
+        writeRows(out, removedRows);
+        writeRows(out, addedRows);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int flags = in.readByte();
+        clear = (flags & CLEAR) != 0;
+        strict = (flags & STRICT) != 0;
+        if ((flags & REPLACEMENT) != 0) {
+            replacement = (ResultList) in.readObject();
+            return;
+        }
+        removedRows = readRows(in);
+        addedRows = readRows(in);
+    }
+
+    private void writeRows(ObjectOutput out, List<Object> rows) throws IOException {
+        CompactSerializer.writeVarLong(out, rows.size());
+        for (Object row : rows) {
+            CompactSerializer.writeValue(out, row);
+        }
+    }
+
+    private List<Object> readRows(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = (int) CompactSerializer.readVarLong(in);
+        List<Object> rows = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+            rows.add(CompactSerializer.readValue(in));
+        }
+        return rows;
+    }
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Order of cached query result, should be the same as query <code>ORDER BY</code>.
+ * Added rows are inserted at their sort position instead of the result end.
+ * If limit is defined, only top rows are kept with a small overflow
+ * (see {@link DynamicQueryCacheSettings#ORDER_OVERFLOW}), result is reloaded
+ * when removals drain it below the limit. Limit should be the same as query max results.
+ *
+ */
+public class ResultOrder {
+
+    private final SortKeyExtractor<Object> extractor;
+    private final boolean descending;
+    private final int limit;
+
+    public ResultOrder(SortKeyExtractor<?> extractor, boolean descending) {
+        this(extractor, descending, 0);
+    }
+
+    /**
+     * @param limit - max amount of result rows, <code>0</code> if unlimited
+     */
+    public ResultOrder(SortKeyExtractor<?> extractor, boolean descending, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit can't be negative: " + limit);
+        }
+        this.extractor = (SortKeyExtractor<Object>) extractor;
+        this.descending = descending;
+        this.limit = limit;
+    }
+
+    Comparable<Object> getSortKey(Object row) {
+        return (Comparable<Object>) extractor.getSortKey(row);
+    }
+
+    boolean isDescending() {
+        return descending;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+}
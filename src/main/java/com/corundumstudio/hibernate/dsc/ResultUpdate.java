@@ -0,0 +1,64 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.List;
+
+import org.hibernate.cache.spi.QueryKey;
+
+/**
+ * Disassembled changes of cached query result
+ *
+ */
+class ResultUpdate {
+
+    private final QueryKey key;
+    private final boolean clear;
+    private final List<Object> removedRows;
+    private final List<Object> addedRows;
+    // null if result isn't aggregate
+    private final AggregateChange aggregate;
+
+    ResultUpdate(QueryKey key, boolean clear, List<Object> removedRows, List<Object> addedRows,
+                    AggregateChange aggregate) {
+        this.key = key;
+        this.clear = clear;
+        this.removedRows = removedRows;
+        this.addedRows = addedRows;
+        this.aggregate = aggregate;
+    }
+
+    QueryKey getKey() {
+        return key;
+    }
+
+    boolean isClear() {
+        return clear;
+    }
+
+    List<Object> getRemovedRows() {
+        return removedRows;
+    }
+
+    List<Object> getAddedRows() {
+        return addedRows;
+    }
+
+    AggregateChange getAggregate() {
+        return aggregate;
+    }
+
+}
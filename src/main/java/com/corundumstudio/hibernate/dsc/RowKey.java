@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.Arrays;
+
+/**
+ * Hash key of multi-column row
+ *
+ */
+final class RowKey {
+
+    private final Object[] row;
+    private final int hashCode;
+
+    private RowKey(Object[] row) {
+        this.row = row;
+        this.hashCode = Arrays.hashCode(row);
+    }
+
+    /**
+     * @param row - single value or array of column values
+     * @return object with value based equals and hashCode
+     */
+    static Object of(Object row) {
+        if (row instanceof Object[]) {
+            return new RowKey((Object[]) row);
+        }
+        return row;
+    }
+
+    Object[] getRow() {
+        return row;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof RowKey && Arrays.equals(row, ((RowKey) obj).row);
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Reads region snapshot written by {@link SnapshotWriter}
+ * sequentially through buffered file stream, so snapshot size isn't limited
+ * by address space. Should be closed after reading.
+ *
+ * Not thread safe.
+ *
+ */
+class SnapshotReader {
+
+    private final long timestamp;
+    private final String regionName;
+    private final Set<Serializable> spaces;
+    private final ObjectInputStream in;
+
+    private ParamKey paramKey;
+    private QueryCacheValue value;
+    private ResultList result;
+
+    SnapshotReader(File file) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        boolean opened = false;
+        try {
+            DataInputStream dataIn = new DataInputStream(new BufferedInputStream(fileStream, 1 << 16));
+            try {
+                if (dataIn.readInt() != SnapshotWriter.MAGIC) {
+                    throw new IOException("Not a query cache snapshot: " + file);
+                }
+                int version = dataIn.readInt();
+                if (version != SnapshotWriter.VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version + ": " + file);
+                }
+                timestamp = dataIn.readLong();
+            } catch (EOFException e) {
+                throw new IOException("Not a query cache snapshot: " + file);
+            }
+            in = new ObjectInputStream(dataIn);
+            regionName = in.readUTF();
+            spaces = (Set<Serializable>) in.readObject();
+            opened = true;
+        } catch (ClassNotFoundException e) {
+            throw (IOException) new IOException("Can't read snapshot: " + file).initCause(e);
+        } finally {
+            if (!opened) {
+                fileStream.close();
+            }
+        }
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    String getRegionName() {
+        return regionName;
+    }
+
+    Set<Serializable> getSpaces() {
+        return spaces;
+    }
+
+    /**
+     * @return <code>false</code> if there are no records anymore
+     */
+    boolean next() throws IOException {
+        try {
+            paramKey = (ParamKey) in.readObject();
+            if (paramKey == null) {
+                return false;
+            }
+            value = (QueryCacheValue) in.readObject();
+            result = (ResultList) in.readObject();
+            return true;
+        } catch (ClassNotFoundException e) {
+            throw (IOException) new IOException("Can't read snapshot record").initCause(e);
+        }
+    }
+
+    ParamKey getParamKey() {
+        return paramKey;
+    }
+
+    QueryCacheValue getValue() {
+        return value;
+    }
+
+    ResultList getResult() {
+        return result;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes region snapshot to a temporary file through {@link FileChannel},
+ * which replaces the target file on {@link #commit()}.
+ *
+ * File format: magic, version and snapshot timestamp header,
+ * then Java serialization stream of region name, query spaces
+ * and records of <code>ParamKey, QueryCacheValue, ResultList</code>
+ * terminated by <code>null</code>. Class descriptors are shared
+ * between records, so the stream is reset only every {@link #RESET_INTERVAL} records
+ * to release written objects.
+ *
+ * Not thread safe.
+ *
+ */
+class SnapshotWriter {
+
+    static final int MAGIC = 0x44534353;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 16;
+
+    private static final int RESET_INTERVAL = 1024;
+
+    private final File file;
+    private final File tempFile;
+    private final FileOutputStream fileStream;
+    private final ObjectOutputStream out;
+    private int count;
+
+    SnapshotWriter(File file, String regionName, long timestamp, Set<Serializable> spaces) throws IOException {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        fileStream = new FileOutputStream(tempFile);
+        try {
+            FileChannel channel = fileStream.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(timestamp).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            out = new ObjectOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeUTF(regionName);
+            out.writeObject(new HashSet<Serializable>(spaces));
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    void write(ParamKey paramKey, QueryCacheValue value, ResultList result) throws IOException {
+        out.writeObject(paramKey);
+        out.writeObject(value);
+        out.writeObject(result);
+        if (++count % RESET_INTERVAL == 0) {
+            out.reset();
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Flushes snapshot to disk and replaces target file
+     */
+    void commit() throws IOException {
+        try {
+            out.writeObject(null);
+            out.flush();
+            fileStream.getChannel().force(true);
+        } finally {
+            fileStream.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // target can't be replaced on some platforms
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException("Can't rename " + tempFile + " to " + file);
+            }
+        }
+    }
+
+    void abort() {
+        try {
+            fileStream.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        tempFile.delete();
+    }
+
+}
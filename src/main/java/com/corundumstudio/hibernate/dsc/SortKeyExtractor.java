@@ -0,0 +1,30 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+/**
+ * Extracts sort key from query result row, see {@link ResultOrder}
+ *
+ * @param <R> - query result row type, the same as result passed to {@link InsertOrDeleteCommand}
+ */
+public interface SortKeyExtractor<R> {
+
+    /**
+     * @return serializable sort key or <code>null</code>, which is lower than any key
+     */
+    Comparable<?> getSortKey(R row);
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache changes made during session transaction.
+ * Changes are coalesced per region and query parameters
+ * and applied to the cache only after transaction commit.
+ *
+ */
+class TransactionBatch implements Synchronization {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Map<BatchKey, BatchEntry> entries = new LinkedHashMap<BatchKey, BatchEntry>();
+    // rows added per region and entity, so entity deletion cancels them
+    // even if its callback doesn't find the same queries anymore
+    private final Map<AddedKey, List<AddedRow>> addedRows = new HashMap<AddedKey, List<AddedRow>>();
+    private final QueryCacheEntityListener listener;
+    // weak, since listener holds batch until transaction completion
+    private final Reference<SessionImplementor> sessionRef;
+
+    TransactionBatch(QueryCacheEntityListener listener, SessionImplementor session) {
+        this.listener = listener;
+        this.sessionRef = new WeakReference<SessionImplementor>(session);
+    }
+
+    ResultChanges getChanges(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry, ParamKey paramKey) {
+        return getEntry(queryCache, listenerEntry, paramKey).changes;
+    }
+
+    private BatchEntry getEntry(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry, ParamKey paramKey) {
+        BatchKey key = new BatchKey(listenerEntry.getRegionName(), paramKey);
+        BatchEntry entry = entries.get(key);
+        if (entry == null) {
+            entry = new BatchEntry(queryCache, listenerEntry, paramKey);
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @param entityKey - entity whose rows are tracked for {@link #cancelAdded},
+     *          <code>null</code> if they aren't tracked
+     */
+    void add(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry, ParamKey paramKey,
+                InsertOrDeleteCommand command, EntityKey entityKey) {
+        BatchEntry entry = getEntry(queryCache, listenerEntry, paramKey);
+        entry.changes.add(command);
+        if (entityKey == null) {
+            return;
+        }
+        AddedKey key = new AddedKey(listenerEntry.getRegionName(), entityKey);
+        List<AddedRow> rows = addedRows.get(key);
+        if (rows == null) {
+            rows = new ArrayList<AddedRow>();
+            addedRows.put(key, rows);
+        }
+        rows.add(new AddedRow(entry, command));
+    }
+
+    /**
+     * @param entityKey - see {@link #add}
+     */
+    void remove(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry, ParamKey paramKey,
+                InsertOrDeleteCommand command, EntityKey entityKey) {
+        BatchEntry entry = getEntry(queryCache, listenerEntry, paramKey);
+        entry.changes.remove(command);
+        if (entityKey == null) {
+            return;
+        }
+        // removal has already cancelled rows of entity added to the result
+        List<AddedRow> rows = addedRows.get(new AddedKey(listenerEntry.getRegionName(), entityKey));
+        if (rows != null) {
+            for (Iterator<AddedRow> iterator = rows.iterator(); iterator.hasNext();) {
+                if (iterator.next().entry == entry) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels rows added for the entity by the transaction
+     *
+     * @param removedKeys - keys of results entity has been already removed from
+     */
+    void cancelAdded(QueryListenerEntry listenerEntry, EntityKey entityKey, Collection<ParamKey> removedKeys) {
+        List<AddedRow> rows = addedRows.remove(new AddedKey(listenerEntry.getRegionName(), entityKey));
+        if (rows == null) {
+            return;
+        }
+        for (AddedRow row : rows) {
+            if (!removedKeys.contains(row.entry.paramKey)) {
+                row.entry.changes.remove(row.command);
+            }
+        }
+    }
+
+    @Override
+    public void beforeCompletion() {
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+        SessionImplementor session = sessionRef.get();
+        if (session == null) {
+            return;
+        }
+        listener.removeTransactionBatch(session);
+        if (status != Status.STATUS_COMMITTED) {
+            return;
+        }
+        for (BatchEntry entry : entries.values()) {
+            try {
+                listener.applyChanges(entry.queryCache, entry.listenerEntry, entry.paramKey, entry.changes, session);
+            } catch (RuntimeException e) {
+                log.error("Can't apply changes to query cache region: " + entry.listenerEntry.getRegionName(), e);
+            }
+        }
+    }
+
+    private static class BatchEntry {
+
+        final DynamicQueryCache queryCache;
+        final QueryListenerEntry listenerEntry;
+        final ParamKey paramKey;
+        final ResultChanges changes = new ResultChanges();
+
+        BatchEntry(DynamicQueryCache queryCache, QueryListenerEntry listenerEntry, ParamKey paramKey) {
+            this.queryCache = queryCache;
+            this.listenerEntry = listenerEntry;
+            this.paramKey = paramKey;
+        }
+
+    }
+
+    private static class AddedRow {
+
+        final BatchEntry entry;
+        final InsertOrDeleteCommand command;
+
+        AddedRow(BatchEntry entry, InsertOrDeleteCommand command) {
+            this.entry = entry;
+            this.command = command;
+        }
+
+    }
+
+    private static class AddedKey {
+
+        private final String regionName;
+        private final EntityKey entityKey;
+
+        AddedKey(String regionName, EntityKey entityKey) {
+            this.regionName = regionName;
+            this.entityKey = entityKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * regionName.hashCode() + entityKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof AddedKey)) {
+                return false;
+            }
+            AddedKey other = (AddedKey) obj;
+            return regionName.equals(other.regionName) && entityKey.equals(other.entityKey);
+        }
+
+    }
+
+    private static class BatchKey {
+
+        private final String regionName;
+        private final ParamKey paramKey;
+
+        BatchKey(String regionName, ParamKey paramKey) {
+            this.regionName = regionName;
+            this.paramKey = paramKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * regionName.hashCode() + paramKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) obj;
+            return regionName.equals(other.regionName) && paramKey.equals(other.paramKey);
+        }
+
+    }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.hibernate.dsc;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.cache.spi.QueryResultsRegion;
+
+/**
+ * Limits total weight of region results. Result weight is its row count
+ * plus one for its QueryCacheValue entry. Results over the budget are evicted
+ * together with their QueryCacheValue entries in approximate LRU order:
+ * CLOCK queue gives a second chance to results hit since the last sweep.
+ *
+ * Weights of results removed by region itself are dropped lazily, when the sweep reaches them.
+ *
+ * Budget is node-local: only results cached by this node are weighed, results
+ * replicated from other nodes aren't counted, and region eviction removes
+ * a result only from local copy of replicated region.
+ *
+ */
+class WeightBudget {
+
+    private final QueryResultsRegion region;
+    private final long maxWeight;
+    private final DynamicQueryCacheStatistics statistics;
+    private final ParamKeyListener keyListener;
+
+    private final ConcurrentMap<QueryKey, Entry> entries = new ConcurrentHashMap<QueryKey, Entry>();
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong weight = new AtomicLong();
+    private final Lock sweepLock = new ReentrantLock();
+
+    WeightBudget(QueryResultsRegion region, long maxWeight, DynamicQueryCacheStatistics statistics,
+                    ParamKeyListener keyListener) {
+        this.region = region;
+        this.maxWeight = maxWeight;
+        this.statistics = statistics;
+        this.keyListener = keyListener;
+    }
+
+    void add(QueryKey key, ParamKey paramKey, int rowCount) {
+        Entry entry = new Entry(key, paramKey, rowCount + 1);
+        weight.addAndGet(entry.weight.get());
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            discard(previous);
+        }
+        clock.offer(entry);
+    }
+
+    void touch(QueryKey key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.referenced) {
+            entry.referenced = true;
+        }
+    }
+
+    void update(QueryKey key, int rowCount) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            int previous = entry.weight.getAndSet(rowCount + 1);
+            weight.addAndGet(rowCount + 1 - previous);
+        }
+    }
+
+    void adjust(QueryKey key, int rowDelta) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.weight.addAndGet(rowDelta);
+            weight.addAndGet(rowDelta);
+        }
+    }
+
+    long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * Drops weights of all results, used when region is cleared
+     * without notifying about removed entries
+     */
+    void clear() {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            discard(entry);
+        }
+        for (Iterator<Entry> iterator = clock.iterator(); iterator.hasNext();) {
+            if (iterator.next().removed) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void discard(Entry entry) {
+        if (!entry.removed) {
+            entry.removed = true;
+            weight.addAndGet(-entry.weight.get());
+        }
+    }
+
+    /**
+     * Evicts results until total weight fits the budget,
+     * skipped if another thread is already doing it
+     */
+    void evictIfNeeded() {
+        if (weight.get() <= maxWeight || !sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            // each entry gets at most one second chance per sweep
+            int maxSteps = entries.size() * 2 + 1;
+            for (int step = 0; step < maxSteps && weight.get() > maxWeight; step++) {
+                Entry entry = clock.poll();
+                if (entry == null) {
+                    break;
+                }
+                if (entry.removed) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.offer(entry);
+                    continue;
+                }
+                evict(entry);
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    private void evict(Entry entry) {
+        if (!entries.remove(entry.key, entry)) {
+            return;
+        }
+        int entryWeight = entry.weight.get();
+        discard(entry);
+        if (region.get(entry.key) == null) {
+            // already removed by region
+            return;
+        }
+        region.evict(entry.key);
+        QueryCacheValue value = (QueryCacheValue) region.get(entry.paramKey);
+        // value read by QueryCacheValueExternalizer has no key until it's resolved,
+        // such entry is left to region eviction
+        if (value != null && entry.key.equals(value.getKey())) {
+            region.evict(entry.paramKey);
+            keyListener.onRemove(entry.paramKey);
+        }
+        statistics.recordEviction(entryWeight - 1);
+    }
+
+    private static class Entry {
+
+        final QueryKey key;
+        final ParamKey paramKey;
+        final AtomicInteger weight;
+        volatile boolean referenced;
+        volatile boolean removed;
+
+        Entry(QueryKey key, ParamKey paramKey, int weight) {
+            this.key = key;
+            this.paramKey = paramKey;
+            this.weight = new AtomicInteger(weight);
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.type.LongType;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.AggregateFunction;
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class AggregateQueriesTest extends BaseTest {
+
+    private static final String countRegion = "CountSimpleEntitySQL";
+    private static final String maxRegion = "MaxSimpleEntitySQL";
+    private final String phoneValue = "5551313";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate(new Properties());
+        registerListeners();
+    }
+
+    private static void registerListeners() {
+        queryCacheEntityListener.register(SimpleEntity.class, countRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.setAggregate(AggregateFunction.COUNT, null);
+            }
+        });
+        queryCacheEntityListener.register(SimpleEntity.class, maxRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.setAggregate(AggregateFunction.MAX, object.getId());
+            }
+        });
+    }
+
+    private Object queryResult(String sql, String region) {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery(sql);
+        query.addScalar("res", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(region);
+        query.setParameter("phone", phoneValue);
+        Object res = query.uniqueResult();
+        session.close();
+        return res;
+    }
+
+    private Object countResult() {
+        return queryResult("SELECT COUNT(*) AS res FROM SimpleEntity WHERE phone = :phone", countRegion);
+    }
+
+    private Object maxResult() {
+        return queryResult("SELECT MAX(id) AS res FROM SimpleEntity WHERE phone = :phone", maxRegion);
+    }
+
+    @Test
+    public void testCount() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(countRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(createEntity(121L, phoneValue));
+        Assert.assertEquals(1L, countResult());
+
+        statistics.clear();
+        store(createEntity(122L, phoneValue));
+        store(createEntity(123L, phoneValue));
+        Assert.assertEquals(3L, countResult());
+        delete(122L);
+        Assert.assertEquals(2L, countResult());
+        delete(121L);
+        delete(123L);
+        Assert.assertEquals(0L, countResult());
+        Assert.assertEquals(0, statistics.getMissCount());
+    }
+
+    @Test
+    public void testMax() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(maxRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(createEntity(131L, phoneValue));
+        store(createEntity(132L, phoneValue));
+        Assert.assertEquals(132L, maxResult());
+
+        statistics.clear();
+        store(createEntity(134L, phoneValue));
+        Assert.assertEquals(134L, maxResult());
+        store(createEntity(133L, phoneValue));
+        delete(131L);
+        Assert.assertEquals(134L, maxResult());
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        // deleted maximum requires reload
+        delete(134L);
+        Assert.assertEquals(133L, maxResult());
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        delete(132L);
+        delete(133L);
+    }
+
+}
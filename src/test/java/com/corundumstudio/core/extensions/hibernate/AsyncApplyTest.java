@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.UpdateCommand;
+
+public class AsyncApplyTest extends BaseTest {
+
+    private static final String cacheRegion = "AsyncSimpleEntitySQL";
+    private final String phoneValue = "5550202";
+    private final String shutdownPhoneValue = "5550203";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+        queryCacheEntityListener.setAsyncApply(4, 16);
+    }
+
+    @AfterClass
+    public static void after() {
+        queryCacheEntityListener.setAsyncApply(0, 0);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+
+            @Override
+            protected void onUpdate(UpdateCommand command, SimpleEntity object) {
+            }
+        });
+    }
+
+    private void flush() throws InterruptedException {
+        Assert.assertTrue(queryCacheEntityListener.flush(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInsertDelete() throws InterruptedException {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        List<SimpleEntity> entities = new ArrayList<SimpleEntity>();
+        List<Long> expected = new ArrayList<Long>();
+        for (long i = 21; i < 121; i++) {
+            SimpleEntity entity = createEntity(i, phoneValue);
+            store(entity);
+            entities.add(entity);
+            expected.add(i);
+        }
+        flush();
+        Assert.assertEquals(expected, listQueryResult(cacheRegion, phoneValue));
+
+        for (SimpleEntity entity : entities) {
+            delete(entity);
+        }
+        flush();
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroQueueCapacity() {
+        queryCacheEntityListener.setAsyncApply(4, 0);
+    }
+
+    @Test
+    public void testShutdownAppliesPendingUpdates() throws InterruptedException {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, shutdownPhoneValue));
+
+        List<SimpleEntity> entities = new ArrayList<SimpleEntity>();
+        List<Long> expected = new ArrayList<Long>();
+        for (long i = 121; i < 171; i++) {
+            SimpleEntity entity = createEntity(i, shutdownPhoneValue);
+            store(entity);
+            entities.add(entity);
+            expected.add(i);
+        }
+        // no flush, shutdown waits for pending updates
+        queryCacheEntityListener.shutdown();
+        Assert.assertEquals(expected, listQueryResult(cacheRegion, shutdownPhoneValue));
+
+        queryCacheEntityListener.setAsyncApply(4, 16);
+        for (SimpleEntity entity : entities) {
+            delete(entity);
+        }
+        flush();
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, shutdownPhoneValue));
+    }
+
+}
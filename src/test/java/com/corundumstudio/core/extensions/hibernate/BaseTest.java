@@ -15,8 +15,12 @@
  */
 package com.corundumstudio.core.extensions.hibernate;
 
+import java.util.List;
 import java.util.Properties;
 
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
 import org.hibernate.cache.infinispan.InfinispanRegionFactory;
 import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.cfg.Configuration;
@@ -26,13 +30,15 @@ import org.hibernate.event.service.spi.EventListenerRegistry;
 import org.hibernate.event.spi.EventType;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
+import org.hibernate.type.LongType;
+import org.junit.AfterClass;
 import org.junit.Ignore;
 
 import com.corundumstudio.hibernate.dsc.DynamicQueryCacheFactory;
 import com.corundumstudio.hibernate.dsc.QueryCacheEntityListener;
 
 @Ignore
-class BaseTest {
+public class BaseTest {
 
     private static final String DRIVER = "org.h2.Driver";
     private static final String URL = "jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1;MVCC=TRUE";
@@ -51,14 +57,28 @@ class BaseTest {
         return props;
     }
 
+    @AfterClass
+    public static void closeSessionFactory() {
+        if (sessionFactory != null) {
+            sessionFactory.close();
+        }
+    }
+
     protected static void initHibernate() {
+        initHibernate(new Properties());
+    }
+
+    protected static void initHibernate(Properties cacheSettings) {
         Properties props = buildDatabaseConfiguration("db1");
 
         Configuration cfg = new Configuration();
+        cfg.addProperties(cacheSettings);
         cfg.setProperty(Environment.GENERATE_STATISTICS, "true");
         cfg.setProperty(AvailableSettings.HBM2DDL_AUTO, "create");
         cfg.setProperty(AvailableSettings.CACHE_REGION_FACTORY, InfinispanRegionFactory.class.getName());
-        cfg.setProperty(InfinispanRegionFactory.INFINISPAN_CONFIG_RESOURCE_PROP, "infinispan.xml");
+        if (cacheSettings.getProperty(InfinispanRegionFactory.INFINISPAN_CONFIG_RESOURCE_PROP) == null) {
+            cfg.setProperty(InfinispanRegionFactory.INFINISPAN_CONFIG_RESOURCE_PROP, "infinispan.xml");
+        }
         cfg.setProperty(AvailableSettings.QUERY_CACHE_FACTORY, DynamicQueryCacheFactory.class.getName());
         cfg.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "true");
         cfg.setProperty(Environment.USE_QUERY_CACHE, "true");
@@ -73,7 +93,71 @@ class BaseTest {
         registry.getEventListenerGroup(EventType.POST_UPDATE).appendListener(queryCacheEntityListener);
         registry.getEventListenerGroup(EventType.POST_INSERT).appendListener(queryCacheEntityListener);
         registry.getEventListenerGroup(EventType.POST_DELETE).appendListener(queryCacheEntityListener);
+        queryCacheEntityListener.addSessionFactory(sessionFactory);
     }
 
+    /**
+     * Clears only the region, so results cached by other regions are kept
+     */
+    protected void clearQueryRegion(String cacheRegion) {
+        sessionFactory.getQueryCache(cacheRegion).clear();
+    }
+
+    /**
+     * @return ids of entities with the phone, cached in the region
+     */
+    protected List listQueryResult(String cacheRegion, String phone) {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery("SELECT id FROM SimpleEntity WHERE phone = :phone");
+        query.addScalar("id", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(cacheRegion);
+        query.setParameter("phone", phone);
+        List res = query.list();
+        session.close();
+        return res;
+    }
+
+    protected SimpleEntity createEntity(Long id, String phone) {
+        SimpleEntity entity = new SimpleEntity();
+        entity.setId(id);
+        entity.setPhone(phone);
+        entity.setAddress("Moscow city");
+        return entity;
+    }
+
+    protected void store(SimpleEntity entity) {
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        session.saveOrUpdate(entity);
+        tr.commit();
+        session.close();
+    }
+
+    protected void update(Long id, String phone, String address) {
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        SimpleEntity entity = (SimpleEntity) session.get(SimpleEntity.class, id);
+        entity.setPhone(phone);
+        entity.setAddress(address);
+        tr.commit();
+        session.close();
+    }
+
+    protected void delete(SimpleEntity entity) {
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        session.delete(entity);
+        tr.commit();
+        session.close();
+    }
+
+    protected void delete(Long id) {
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        session.delete(session.get(SimpleEntity.class, id));
+        tr.commit();
+        session.close();
+    }
 
 }
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class DeltaMaintenanceTest extends BaseTest {
+
+    private static final String cacheRegion = "DeltaSimpleEntitySQL";
+    private final String phoneValue = "7654321";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        String prefix = DynamicQueryCacheSettings.PREFIX + cacheRegion + ".";
+        settings.setProperty(prefix + DynamicQueryCacheSettings.DELTA_MAINTENANCE, "true");
+        settings.setProperty(prefix + DynamicQueryCacheSettings.DELTA_COMPACTION_THRESHOLD, "2");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    @Test
+    public void testChangesAcrossCompactions() throws InterruptedException {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        List<SimpleEntity> entities = new ArrayList<SimpleEntity>();
+        List<Long> expected = new ArrayList<Long>();
+        for (long i = 1; i <= 7; i++) {
+            SimpleEntity entity = createEntity(i, phoneValue);
+            store(entity);
+            entities.add(entity);
+            expected.add(i);
+            Assert.assertEquals(expected, listQueryResult(cacheRegion, phoneValue));
+        }
+
+        delete(entities.get(0));
+        delete(entities.get(3));
+        Assert.assertEquals(Arrays.asList(2L, 3L, 5L, 6L, 7L), listQueryResult(cacheRegion, phoneValue));
+
+        // let background compaction finish
+        Thread.sleep(200);
+        Assert.assertEquals(Arrays.asList(2L, 3L, 5L, 6L, 7L), listQueryResult(cacheRegion, phoneValue));
+
+        for (SimpleEntity entity : entities) {
+            if (entity.getId() != 1L && entity.getId() != 4L) {
+                delete(entity);
+            }
+        }
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cache.infinispan.InfinispanRegionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.type.LongType;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.jgroups.JChannel;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class DeltaPropagationTest extends BaseTest {
+
+    private static final String deltaRegion = "DeltaPropagationSimpleEntitySQL";
+    private static final String fullRegion = "FullPropagationSimpleEntitySQL";
+    private static final String deltaPhone = "5551919";
+    private static final String fullPhone = "5551920";
+    private static final int rowCount = 500;
+
+    private static SessionFactoryImplementor node1;
+    private static SessionFactoryImplementor node2;
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(InfinispanRegionFactory.INFINISPAN_CONFIG_RESOURCE_PROP, "infinispan-cluster.xml");
+        settings.setProperty(InfinispanRegionFactory.QUERY_CACHE_RESOURCE_PROP, "replicated-query");
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + DynamicQueryCacheSettings.JMX_ENABLED, "false");
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + deltaRegion + "."
+                                + DynamicQueryCacheSettings.DELTA_PROPAGATION, "true");
+        initHibernate(settings);
+        node1 = sessionFactory;
+        initHibernate(settings);
+        node2 = sessionFactory;
+        registerListeners();
+    }
+
+    @AfterClass
+    public static void after() {
+        node1.close();
+        node2.close();
+    }
+
+    private static void registerListeners() {
+        CacheCallback<SimpleEntity> callback = new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        };
+        queryCacheEntityListener.register(SimpleEntity.class, deltaRegion, callback);
+        queryCacheEntityListener.register(SimpleEntity.class, fullRegion, callback);
+    }
+
+    private List listQueryResult(SessionFactory node, String region, String phone) {
+        Session session = node.openSession();
+        SQLQuery query = session.createSQLQuery("SELECT id FROM SimpleEntity WHERE phone = :phone");
+        query.addScalar("id", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(region);
+        query.setParameter("phone", phone);
+        List res = query.list();
+        session.close();
+        return res;
+    }
+
+    private void store(SessionFactory node, Long id, String phone) {
+        Session session = node.openSession();
+        Transaction tr = session.beginTransaction();
+        session.save(createEntity(id, phone));
+        tr.commit();
+        session.close();
+    }
+
+    /**
+     * Inserts rows bypassing Hibernate, so cached results aren't affected
+     */
+    private void insertRows(final long firstId, final String phone) {
+        Session session = node1.openSession();
+        Transaction tr = session.beginTransaction();
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement(
+                        "INSERT INTO SimpleEntity (id, phone, address) VALUES (?, ?, ?)");
+                for (long id = firstId; id < firstId + rowCount; id++) {
+                    statement.setLong(1, id);
+                    statement.setString(2, phone);
+                    statement.setString(3, "Moscow city");
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                statement.close();
+            }
+        });
+        tr.commit();
+        session.close();
+    }
+
+    private void deleteRows(final String phone) {
+        Session session = node1.openSession();
+        Transaction tr = session.beginTransaction();
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement("DELETE FROM SimpleEntity WHERE phone = ?");
+                statement.setString(1, phone);
+                statement.executeUpdate();
+                statement.close();
+            }
+        });
+        tr.commit();
+        session.close();
+    }
+
+    private long getSentBytes(SessionFactoryImplementor node) {
+        InfinispanRegionFactory regionFactory = (InfinispanRegionFactory) node.getSettings().getRegionFactory();
+        JGroupsTransport transport = (JGroupsTransport) regionFactory.getCacheManager().getTransport();
+        // RPCs bypass channel counters, so transport protocol ones are used
+        return ((JChannel) transport.getChannel()).getProtocolStack().getTransport().getNumBytesSent();
+    }
+
+    /**
+     * @return bytes sent by node to replicate result change
+     */
+    private long storeAndMeasure(Long id, String phone) {
+        long sentBytes = getSentBytes(node1);
+        store(node1, id, phone);
+        return getSentBytes(node1) - sentBytes;
+    }
+
+    @Test
+    public void testDeltaPropagation() {
+        DynamicQueryCache deltaCache = (DynamicQueryCache) node2.getQueryCache(deltaRegion);
+        DynamicQueryCache fullCache = (DynamicQueryCache) node2.getQueryCache(fullRegion);
+        node1.getQueryCache(deltaRegion);
+        node1.getQueryCache(fullRegion);
+
+        insertRows(1900000L, deltaPhone);
+        insertRows(2000000L, fullPhone);
+        Assert.assertEquals(rowCount, listQueryResult(node1, deltaRegion, deltaPhone).size());
+        Assert.assertEquals(rowCount, listQueryResult(node1, fullRegion, fullPhone).size());
+
+        long deltaBytes = storeAndMeasure(1900999L, deltaPhone);
+        long fullBytes = storeAndMeasure(2000999L, fullPhone);
+
+        // both nodes see the change
+        DynamicQueryCacheStatistics deltaStatistics = deltaCache.getStatistics();
+        DynamicQueryCacheStatistics fullStatistics = fullCache.getStatistics();
+        deltaStatistics.clear();
+        fullStatistics.clear();
+        List deltaResult = listQueryResult(node2, deltaRegion, deltaPhone);
+        Assert.assertEquals(rowCount + 1, deltaResult.size());
+        Assert.assertTrue(deltaResult.contains(1900999L));
+        Assert.assertEquals(rowCount + 1, listQueryResult(node2, fullRegion, fullPhone).size());
+        Assert.assertEquals(0, deltaStatistics.getMissCount());
+        Assert.assertEquals(0, fullStatistics.getMissCount());
+
+        // delta size doesn't depend on result size
+        Assert.assertTrue("delta: " + deltaBytes + ", full result: " + fullBytes, deltaBytes * 3 < fullBytes);
+
+        deleteRows(deltaPhone);
+        deleteRows(fullPhone);
+    }
+
+}
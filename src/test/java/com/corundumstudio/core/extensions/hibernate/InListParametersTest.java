@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.type.LongType;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class InListParametersTest extends BaseTest {
+
+    private static final String cacheRegion = "InListSimpleEntitySQL";
+    private static final String suffixCacheRegion = "SuffixInListSimpleEntitySQL";
+    private final String phoneValue = "5551010";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+        clearQueryRegion(suffixCacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.setParameterElement("addresses", object.getAddress());
+                command.addResult(object.getId());
+            }
+        }, "phone", "address");
+
+        queryCacheEntityListener.register(SimpleEntity.class, suffixCacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameterElement("p", object.getAddress());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    private List listAddressesQueryResult(String... addresses) {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery("SELECT id FROM SimpleEntity "
+                                                    + "WHERE address IN (:addresses) AND phone = :phone");
+        query.addScalar("id", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(cacheRegion);
+        query.setParameterList("addresses", addresses);
+        query.setParameter("phone", phoneValue);
+        List res = query.list();
+        session.close();
+        return res;
+    }
+
+    private List listSuffixQueryResult(String sql, String name, Object value) {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery(sql);
+        query.addScalar("id", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(suffixCacheRegion);
+        if (value instanceof Collection) {
+            query.setParameterList(name, (Collection) value);
+        } else {
+            query.setParameter(name, value);
+        }
+        List res = query.list();
+        session.close();
+        return res;
+    }
+
+    @Test
+    public void testElementFanOut() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Moscow city", "Tver city"));
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Tver city", "Kazan city"));
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Kazan city"));
+        statistics.clear();
+
+        SimpleEntity entity = createEntity(81L, phoneValue);
+        entity.setAddress("Tver city");
+        store(entity);
+        Assert.assertEquals(Arrays.asList(81L), listAddressesQueryResult("Moscow city", "Tver city"));
+        Assert.assertEquals(Arrays.asList(81L), listAddressesQueryResult("Tver city", "Kazan city"));
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Kazan city"));
+
+        update(81L, phoneValue, "Kazan city");
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Moscow city", "Tver city"));
+        Assert.assertEquals(Arrays.asList(81L), listAddressesQueryResult("Tver city", "Kazan city"));
+        Assert.assertEquals(Arrays.asList(81L), listAddressesQueryResult("Kazan city"));
+
+        delete(81L);
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Moscow city", "Tver city"));
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Tver city", "Kazan city"));
+        Assert.assertEquals(Collections.emptyList(), listAddressesQueryResult("Kazan city"));
+        Assert.assertEquals(0, statistics.getMissCount());
+    }
+
+    @Test
+    public void testScalarParameterWithElementSuffix() {
+        String inListQuery = "SELECT id FROM SimpleEntity WHERE address IN (:p)";
+        // p1_ looks like the second element of p collection
+        String scalarQuery = "SELECT id FROM SimpleEntity WHERE phone = :p1_";
+        List<String> addresses = Arrays.asList("Tver city", "Kazan city");
+
+        Assert.assertEquals(Collections.emptyList(), listSuffixQueryResult(inListQuery, "p", addresses));
+        Assert.assertEquals(Collections.emptyList(), listSuffixQueryResult(scalarQuery, "p1_", "Tver city"));
+
+        SimpleEntity entity = createEntity(82L, phoneValue);
+        entity.setAddress("Tver city");
+        store(entity);
+        Assert.assertEquals(Arrays.asList(82L), listSuffixQueryResult(inListQuery, "p", addresses));
+        Assert.assertEquals(Collections.emptyList(), listSuffixQueryResult(scalarQuery, "p1_", "Tver city"));
+
+        delete(82L);
+        Assert.assertEquals(Collections.emptyList(), listSuffixQueryResult(inListQuery, "p", addresses));
+        Assert.assertEquals(Collections.emptyList(), listSuffixQueryResult(scalarQuery, "p1_", "Tver city"));
+    }
+
+}
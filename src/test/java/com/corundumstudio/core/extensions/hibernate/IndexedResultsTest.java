@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.UpdateCommand;
+
+public class IndexedResultsTest extends BaseTest {
+
+    private static final String cacheRegion = "IndexedSimpleEntitySQL";
+    private final String phoneValue = "5554433";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.INDEXED_RESULTS, "true");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+
+            @Override
+            protected void onUpdate(UpdateCommand command, SimpleEntity object) {
+                // retried insert
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    @Test
+    public void testDuplicateAddIgnored() {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        SimpleEntity entity1 = createEntity(1L, phoneValue);
+        store(entity1);
+
+        SimpleEntity entity2 = createEntity(2L, phoneValue);
+        store(entity2);
+
+        entity1.setAddress("Tver city");
+        store(entity1);
+        Assert.assertEquals(Arrays.asList(1L, 2L), listQueryResult(cacheRegion, phoneValue));
+
+        delete(entity1);
+        Assert.assertEquals(Arrays.asList(2L), listQueryResult(cacheRegion, phoneValue));
+        delete(entity2);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+    @Test
+    public void testMissingRowRemoval() {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        SimpleEntity entity = createEntity(4L, "5550000");
+        store(entity);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        // phone is changed bypassing listener, so cached result doesn't contain the entity
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        session.createSQLQuery("UPDATE SimpleEntity SET phone = :phone WHERE id = :id")
+                    .setParameter("phone", phoneValue).setParameter("id", 4L).executeUpdate();
+        tr.commit();
+        session.close();
+
+        entity.setPhone(phoneValue);
+        delete(entity);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+}
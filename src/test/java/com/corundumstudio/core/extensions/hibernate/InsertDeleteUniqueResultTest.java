@@ -19,7 +19,6 @@ import junit.framework.Assert;
 
 import org.hibernate.SQLQuery;
 import org.hibernate.Session;
-import org.hibernate.Transaction;
 import org.hibernate.type.LongType;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -63,22 +62,6 @@ public class InsertDeleteUniqueResultTest extends BaseTest {
         session.close();
     }
 
-    private void store(SimpleEntity entity) {
-        Session session1 = sessionFactory.openSession();
-        Transaction tr1 = session1.beginTransaction();
-        session1.save(entity);
-        tr1.commit();
-        session1.close();
-    }
-
-    private void delete(SimpleEntity entity) {
-        Session session1 = sessionFactory.openSession();
-        Transaction tr1 = session1.beginTransaction();
-        session1.delete(entity);
-        tr1.commit();
-        session1.close();
-    }
-
 
     @Test
     public void testEmptyCache() {
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class NearCacheTest extends BaseTest {
+
+    private static final String cacheRegion = "NearSimpleEntitySQL";
+    private final String phoneValue = "5551717";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.NEAR_CACHE_SIZE, "100");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    @Test
+    public void testNearCache() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+        statistics.clear();
+
+        // absent entry is cached
+        store(createEntity(171L, phoneValue));
+        store(createEntity(172L, phoneValue));
+        Assert.assertEquals(1, statistics.getNearCacheHitCount());
+
+        // absent entry is invalidated by region put
+        Assert.assertEquals(Arrays.asList(171L, 172L), listQueryResult(cacheRegion, phoneValue));
+        store(createEntity(173L, phoneValue));
+        Assert.assertEquals(1, statistics.getNearCacheHitCount());
+        Assert.assertEquals(Arrays.asList(171L, 172L, 173L), listQueryResult(cacheRegion, phoneValue));
+
+        store(createEntity(174L, phoneValue));
+        Assert.assertEquals(2, statistics.getNearCacheHitCount());
+        Assert.assertEquals(Arrays.asList(171L, 172L, 173L, 174L), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        delete(171L);
+        delete(172L);
+        delete(173L);
+        delete(174L);
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.UpdateCommand;
+
+public class OptimisticUpdatesTest extends BaseTest {
+
+    private static final String cacheRegion = "OptimisticSimpleEntitySQL";
+    private final String phoneValue = "5550303";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        String prefix = DynamicQueryCacheSettings.PREFIX + cacheRegion + ".";
+        settings.setProperty(prefix + DynamicQueryCacheSettings.OPTIMISTIC_UPDATES, "true");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+
+            @Override
+            protected void onUpdate(UpdateCommand command, SimpleEntity object) {
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        int threads = 8;
+        final int entitiesPerThread = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++) {
+            final long firstId = 1000 + i * entitiesPerThread;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (long id = firstId; id < firstId + entitiesPerThread; id++) {
+                        store(createEntity(id, phoneValue));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        List<Long> result = new ArrayList<Long>(listQueryResult(cacheRegion, phoneValue));
+        Collections.sort(result);
+        List<Long> expected = new ArrayList<Long>();
+        for (long id = 1000; id < 1000 + threads * entitiesPerThread; id++) {
+            expected.add(id);
+        }
+        Assert.assertEquals(expected, result);
+
+        for (Long id : expected) {
+            SimpleEntity entity = createEntity(id, phoneValue);
+            delete(entity);
+        }
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.ResultOrder;
+import com.corundumstudio.hibernate.dsc.SortKeyExtractor;
+
+public class OrderedResultsTest extends BaseTest {
+
+    private static final String cacheRegion = "OrderedSimpleEntitySQL";
+    private static final String phoneValue = "5550909";
+    private static final int limit = 3;
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.ORDER_OVERFLOW, "1");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        SortKeyExtractor<Object[]> addressExtractor = new SortKeyExtractor<Object[]>() {
+            @Override
+            public Comparable<?> getSortKey(Object[] row) {
+                return (String) row[1];
+            }
+        };
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(new Object[] {object.getId(), object.getAddress()});
+            }
+        }, new ResultOrder(addressExtractor, true, limit), "phone", "address");
+    }
+
+    private List<Long> listQueryResult() {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery("SELECT id, address FROM SimpleEntity WHERE phone = :phone "
+                                                    + "ORDER BY address DESC");
+        query.addScalar("id", LongType.INSTANCE);
+        query.addScalar("address", StringType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(cacheRegion);
+        query.setParameter("phone", phoneValue);
+        query.setMaxResults(limit);
+        List<Object[]> rows = query.list();
+        session.close();
+
+        List<Long> res = new ArrayList<Long>();
+        for (Object[] row : rows) {
+            res.add((Long) row[0]);
+        }
+        return res;
+    }
+
+    private void store(Long id, String address) {
+        SimpleEntity entity = createEntity(id, phoneValue);
+        entity.setAddress(address);
+        store(entity);
+    }
+
+    @Test
+    public void testTopRows() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult());
+        store(71L, "a");
+        store(72L, "c");
+        Assert.assertEquals(Arrays.asList(72L, 71L), listQueryResult());
+        store(73L, "b");
+        Assert.assertEquals(Arrays.asList(72L, 73L, 71L), listQueryResult());
+
+        statistics.clear();
+        // 71 goes to overflow
+        store(74L, "d");
+        Assert.assertEquals(Arrays.asList(74L, 72L, 73L), listQueryResult());
+        // 71 is dropped
+        store(75L, "e");
+        Assert.assertEquals(Arrays.asList(75L, 74L, 72L), listQueryResult());
+        update(73L, phoneValue, "f");
+        Assert.assertEquals(Arrays.asList(73L, 75L, 74L), listQueryResult());
+        // overflow row replaces removed one
+        delete(75L);
+        Assert.assertEquals(Arrays.asList(73L, 74L, 72L), listQueryResult());
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        // result is drained
+        delete(74L);
+        Assert.assertEquals(Arrays.asList(73L, 72L, 71L), listQueryResult());
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        delete(71L);
+        delete(72L);
+        delete(73L);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult());
+    }
+
+    @Test
+    public void testResultShorterThanLimit() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(76L, "a");
+        store(77L, "b");
+        Assert.assertEquals(Arrays.asList(77L, 76L), listQueryResult());
+
+        // result has all rows, so it isn't drained by removal
+        statistics.clear();
+        delete(77L);
+        Assert.assertEquals(Arrays.asList(76L), listQueryResult());
+        delete(76L);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult());
+        Assert.assertEquals(0, statistics.getMissCount());
+    }
+
+}
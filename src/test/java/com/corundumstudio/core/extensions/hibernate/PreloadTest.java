@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.PreloadCallback;
+
+public class PreloadTest extends BaseTest {
+
+    private static final String cacheRegion = "PreloadSimpleEntitySQL";
+    private final String[] phoneValues = {"5551414", "5551415", "5551416"};
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.PRELOAD_THREADS, "2");
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.PRELOAD_BATCH_SIZE, "2");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    private static SQLQuery createQuery(Session session, Object phone) {
+        SQLQuery query = session.createSQLQuery("SELECT id FROM SimpleEntity WHERE phone = :phone");
+        query.addScalar("id", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(cacheRegion);
+        query.setParameter("phone", phone);
+        return query;
+    }
+
+    @Test
+    public void testPreload() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(createEntity(141L, phoneValues[0]));
+        store(createEntity(142L, phoneValues[0]));
+        store(createEntity(143L, phoneValues[1]));
+        store(createEntity(144L, phoneValues[2]));
+        store(createEntity(145L, phoneValues[2]));
+        store(createEntity(146L, phoneValues[2]));
+
+        long results = queryCache.preload(sessionFactory, new PreloadCallback() {
+            @Override
+            protected Query createGroupedQuery(Session session) {
+                SQLQuery query = session.createSQLQuery("SELECT phone, id FROM SimpleEntity "
+                                                + "WHERE phone LIKE '555141%' ORDER BY phone, id");
+                query.addScalar("phone", StringType.INSTANCE);
+                query.addScalar("id", LongType.INSTANCE);
+                return query;
+            }
+
+            @Override
+            protected Query createCachedQuery(Session session, Object value) {
+                return createQuery(session, value);
+            }
+        });
+        Assert.assertEquals(3, results);
+        Assert.assertEquals(3, statistics.getPreloadedResultCount());
+        Assert.assertEquals(6, statistics.getPreloadedRowCount());
+
+        Assert.assertEquals(Arrays.asList(141L, 142L), listQueryResult(cacheRegion, phoneValues[0]));
+        Assert.assertEquals(Arrays.asList(143L), listQueryResult(cacheRegion, phoneValues[1]));
+        Assert.assertEquals(Arrays.asList(144L, 145L, 146L), listQueryResult(cacheRegion, phoneValues[2]));
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        // preloaded results are maintained
+        store(createEntity(147L, phoneValues[1]));
+        Assert.assertEquals(Arrays.asList(143L, 147L), listQueryResult(cacheRegion, phoneValues[1]));
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        for (long id = 141; id <= 147; id++) {
+            delete(id);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class PresenceFilterTest extends BaseTest {
+
+    private static final String cacheRegion = "FilterSimpleEntitySQL";
+    private final String phoneValue = "5551818";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.PRESENCE_FILTER_SIZE, "1000");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    private void evictRegion(DynamicQueryCache queryCache) {
+        for (Object key : queryCache.getRegion().toMap().keySet()) {
+            queryCache.getRegion().evict(key);
+        }
+    }
+
+    @Test
+    public void testPresenceFilter() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+        statistics.clear();
+
+        store(createEntity(181L, phoneValue));
+        Assert.assertEquals(1, statistics.getFilteredLookupCount());
+
+        Assert.assertEquals(Arrays.asList(181L), listQueryResult(cacheRegion, phoneValue));
+        store(createEntity(182L, phoneValue));
+        Assert.assertEquals(1, statistics.getFilteredLookupCount());
+        Assert.assertEquals(Arrays.asList(181L, 182L), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        // evicted parameters entry is removed from filter
+        evictRegion(queryCache);
+        store(createEntity(183L, phoneValue));
+        Assert.assertEquals(2, statistics.getFilteredLookupCount());
+        Assert.assertEquals(Arrays.asList(181L, 182L, 183L), listQueryResult(cacheRegion, phoneValue));
+
+        store(createEntity(184L, phoneValue));
+        Assert.assertEquals(2, statistics.getFilteredLookupCount());
+        Assert.assertEquals(Arrays.asList(181L, 182L, 183L, 184L), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(2, statistics.getMissCount());
+
+        delete(181L);
+        delete(182L);
+        delete(183L);
+        delete(184L);
+    }
+
+}
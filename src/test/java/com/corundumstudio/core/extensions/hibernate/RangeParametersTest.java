@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.type.LongType;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class RangeParametersTest extends BaseTest {
+
+    private static final String cacheRegion = "RangeSimpleEntitySQL";
+    private final String phoneValue = "5551212";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.setParameterRange("from", "to", object.getId());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    private List listQueryResult(long from, long to) {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery("SELECT id FROM SimpleEntity "
+                                                    + "WHERE phone = :phone AND id BETWEEN :from AND :to");
+        query.addScalar("id", LongType.INSTANCE);
+        query.setCacheable(true);
+        query.setCacheRegion(cacheRegion);
+        query.setParameter("phone", phoneValue);
+        query.setParameter("from", from);
+        query.setParameter("to", to);
+        List res = query.list();
+        session.close();
+        return res;
+    }
+
+    @Test
+    public void testOverlappingRanges() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(100, 110));
+        // range isn't registered before the first event, so result is reloaded
+        store(createEntity(107L, phoneValue));
+        Assert.assertEquals(Arrays.asList(107L), listQueryResult(100, 110));
+        Assert.assertEquals(Arrays.asList(107L), listQueryResult(105, 120));
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(111, 120));
+
+        statistics.clear();
+        store(createEntity(110L, phoneValue));
+        store(createEntity(115L, phoneValue));
+        Assert.assertEquals(Arrays.asList(107L, 110L), listQueryResult(100, 110));
+        Assert.assertEquals(Arrays.asList(107L, 110L, 115L), listQueryResult(105, 120));
+        Assert.assertEquals(Arrays.asList(115L), listQueryResult(111, 120));
+
+        delete(107L);
+        delete(115L);
+        Assert.assertEquals(Arrays.asList(110L), listQueryResult(100, 110));
+        Assert.assertEquals(Arrays.asList(110L), listQueryResult(105, 120));
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(111, 120));
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        delete(110L);
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class RegionSnapshotTest extends BaseTest {
+
+    private static final String cacheRegion = "SnapshotSimpleEntitySQL";
+    private final String phoneValue = "5551515";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate(new Properties());
+        registerListener();
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    private void evictRegion(DynamicQueryCache queryCache) {
+        for (Object key : queryCache.getRegion().toMap().keySet()) {
+            queryCache.getRegion().evict(key);
+        }
+    }
+
+    @Test
+    public void testSnapshotRestore() throws IOException, InterruptedException {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+        File file = File.createTempFile("dsc", ".snapshot");
+
+        store(createEntity(151L, phoneValue));
+        store(createEntity(152L, phoneValue));
+        Assert.assertEquals(Arrays.asList(151L, 152L), listQueryResult(cacheRegion, phoneValue));
+
+        // region timestamps have 100 ms precision
+        Thread.sleep(200);
+        Assert.assertEquals(1, queryCache.snapshot(file));
+        evictRegion(queryCache);
+
+        Assert.assertEquals(1, queryCache.restore(file));
+        statistics.clear();
+        Assert.assertEquals(Arrays.asList(151L, 152L), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        // restored result is maintained
+        store(createEntity(153L, phoneValue));
+        Assert.assertEquals(Arrays.asList(151L, 152L, 153L), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        // entity table has been updated after snapshot
+        evictRegion(queryCache);
+        Assert.assertEquals(0, queryCache.restore(file));
+        Assert.assertEquals(Arrays.asList(151L, 152L, 153L), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        file.delete();
+        delete(151L);
+        delete(152L);
+        delete(153L);
+    }
+
+}
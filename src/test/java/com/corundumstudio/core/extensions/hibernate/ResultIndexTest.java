@@ -0,0 +1,182 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class ResultIndexTest extends BaseTest {
+
+    private static final String cacheRegion = "ResultIndexSimpleEntitySQL";
+    private static final AtomicInteger callbackCalls = new AtomicInteger();
+    private final String phoneValue = "5551111";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.RESULT_INDEX, "true");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                callbackCalls.incrementAndGet();
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object);
+            }
+        });
+    }
+
+    private List<Long> listQueryResult() {
+        return listQueryResult(phoneValue);
+    }
+
+    private List<Long> listQueryResult(String phone) {
+        Session session = sessionFactory.openSession();
+        SQLQuery query = session.createSQLQuery("SELECT id FROM SimpleEntity WHERE phone = :phone ORDER BY id");
+        // entity typed scalar, so query has no spaces invalidated by entity changes
+        query.addScalar("id", sessionFactory.getTypeHelper().entity(SimpleEntity.class));
+        query.setCacheable(true);
+        query.setCacheRegion(cacheRegion);
+        query.setParameter("phone", phone);
+        List<Long> res = new ArrayList<Long>();
+        for (Object entity : query.list()) {
+            res.add(((SimpleEntity) entity).getId());
+        }
+        session.close();
+        return res;
+    }
+
+    private SimpleEntity createEntity(Long id) {
+        return createEntity(id, phoneValue);
+    }
+
+    private void changePhone(Long id, String phone) {
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        SimpleEntity entity = (SimpleEntity) session.get(SimpleEntity.class, id);
+        entity.setPhone(phone);
+        tr.commit();
+        session.close();
+    }
+
+    @Test
+    public void testDelete() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(createEntity(91L));
+        Assert.assertEquals(Arrays.asList(91L), listQueryResult());
+        store(createEntity(92L));
+        Assert.assertEquals(Arrays.asList(91L, 92L), listQueryResult());
+
+        statistics.clear();
+        callbackCalls.set(0);
+        delete(91L);
+        Assert.assertEquals(1, callbackCalls.get());
+        Assert.assertEquals(Arrays.asList(92L), listQueryResult());
+
+        // deleted in the same transaction
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        SimpleEntity entity = createEntity(93L);
+        session.save(entity);
+        session.flush();
+        session.delete(entity);
+        tr.commit();
+        session.close();
+        Assert.assertEquals(Arrays.asList(92L), listQueryResult());
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        delete(92L);
+        Assert.assertEquals(Collections.<Long>emptyList(), listQueryResult());
+    }
+
+    @Test
+    public void testClear() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+
+        store(createEntity(96L));
+        Assert.assertEquals(Arrays.asList(96L), listQueryResult());
+        Assert.assertEquals(1, queryCache.getIndexedQueryCount());
+
+        sessionFactory.getCache().evictQueryRegions();
+        Assert.assertEquals(0, queryCache.getIndexedQueryCount());
+
+        // reloaded result is indexed again
+        Assert.assertEquals(Arrays.asList(96L), listQueryResult());
+        Assert.assertEquals(1, queryCache.getIndexedQueryCount());
+
+        delete(96L);
+        Assert.assertEquals(Collections.<Long>emptyList(), listQueryResult());
+    }
+
+    @Test
+    public void testDeleteWithStaleParameters() {
+        String otherPhone = "5552222";
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(createEntity(94L));
+        store(createEntity(95L));
+        Assert.assertEquals(Arrays.asList(94L, 95L), listQueryResult());
+        Assert.assertEquals(Collections.<Long>emptyList(), listQueryResult(otherPhone));
+
+        // callback doesn't handle updates, so query for old phone still contains entity
+        changePhone(94L, otherPhone);
+        Assert.assertEquals(Arrays.asList(94L, 95L), listQueryResult());
+
+        statistics.clear();
+        callbackCalls.set(0);
+        delete(94L);
+        Assert.assertEquals(1, callbackCalls.get());
+        Assert.assertEquals(Arrays.asList(95L), listQueryResult());
+        Assert.assertEquals(Collections.<Long>emptyList(), listQueryResult(otherPhone));
+        Assert.assertEquals(0, statistics.getMissCount());
+
+        delete(95L);
+        Assert.assertEquals(Collections.<Long>emptyList(), listQueryResult());
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class StatisticsTest extends BaseTest {
+
+    private static final String cacheRegion = "StatisticsSimpleEntitySQL";
+    private final String phoneValue = "5550404";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+        statistics.clear();
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(1, statistics.getMissCount());
+        Assert.assertEquals(1, statistics.getHitCount());
+
+        SimpleEntity entity = createEntity(31L, phoneValue);
+        store(entity);
+        Assert.assertEquals(Arrays.asList(31L), listQueryResult(cacheRegion, phoneValue));
+        delete(entity);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        Assert.assertEquals(2, statistics.getEventCount());
+        Assert.assertEquals(2, statistics.getUpdateCount());
+        Assert.assertEquals(1, statistics.getAddedRowCount());
+        Assert.assertEquals(1, statistics.getRemovedRowCount());
+        Assert.assertEquals(3, statistics.getHitCount());
+        Assert.assertEquals(Arrays.asList("0: 2", "1: 1"), Arrays.asList(statistics.getResultSizeHistogram()));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.corundumstudio.hibernate.dsc:type=DynamicQueryCache,region="
+                                            + ObjectName.quote(cacheRegion));
+        Assert.assertEquals(3L, server.getAttribute(name, "HitCount"));
+    }
+
+    @Test
+    public void testMBeanOfNewerSessionFactory() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.corundumstudio.hibernate.dsc:type=DynamicQueryCache,region="
+                                            + ObjectName.quote(cacheRegion));
+        SessionFactoryImplementor previousFactory = sessionFactory;
+        sessionFactory.getQueryCache(cacheRegion);
+        initHibernate();
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        queryCache.getStatistics().clear();
+
+        // region of previous session factory doesn't unregister MBean of newer one
+        previousFactory.close();
+        Assert.assertTrue(server.isRegistered(name));
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(1L, server.getAttribute(name, "MissCount"));
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class SupertypeRegistrationTest extends BaseTest {
+
+    private static final String cacheRegion = "SupertypeSimpleEntitySQL";
+    private final String phoneValue = "5550505";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        // matches every entity
+        queryCacheEntityListener.register(Object.class, cacheRegion, new CacheCallback<Object>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, Object object) {
+                SimpleEntity entity = (SimpleEntity) object;
+                command.setParameter("phone", entity.getPhone());
+                command.addResult(entity.getId());
+            }
+        });
+    }
+
+    @Test
+    public void testSupertypeRegistration() {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        SimpleEntity entity = createEntity(41L, phoneValue);
+        store(entity);
+        Assert.assertEquals(Arrays.asList(41L), listQueryResult(cacheRegion, phoneValue));
+
+        delete(entity);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+}
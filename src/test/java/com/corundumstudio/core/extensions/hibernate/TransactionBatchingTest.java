@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+import com.corundumstudio.hibernate.dsc.UpdateCommand;
+
+public class TransactionBatchingTest extends BaseTest {
+
+    private static final String cacheRegion = "BatchSimpleEntitySQL";
+    private final String phoneValue = "5550101";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+
+            @Override
+            protected void onUpdate(UpdateCommand command, SimpleEntity object) {
+            }
+        });
+    }
+
+    @Test
+    public void testRollbackDiscarded() {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        session.save(createEntity(1L, phoneValue));
+        session.flush();
+        tr.rollback();
+        session.close();
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+    @Test
+    public void testRollbackAfterCommitDiscarded() {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        SimpleEntity entity = createEntity(21L, phoneValue);
+        session.save(entity);
+        tr.commit();
+
+        // the next transaction of the same session is rolled back
+        tr = session.beginTransaction();
+        session.delete(entity);
+        session.flush();
+        tr.rollback();
+        session.close();
+        Assert.assertEquals(Arrays.asList(21L), listQueryResult(cacheRegion, phoneValue));
+
+        session = sessionFactory.openSession();
+        tr = session.beginTransaction();
+        session.delete(session.get(SimpleEntity.class, 21L));
+        tr.commit();
+        session.close();
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+    @Test
+    public void testInsertDeleteCoalesced() {
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+
+        Session session = sessionFactory.openSession();
+        Transaction tr = session.beginTransaction();
+        SimpleEntity entity1 = createEntity(11L, phoneValue);
+        session.save(entity1);
+        session.save(createEntity(12L, phoneValue));
+        session.save(createEntity(13L, phoneValue));
+        session.flush();
+        session.delete(entity1);
+        session.flush();
+
+        // changes are applied after commit
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+        tr.commit();
+        session.close();
+
+        Assert.assertEquals(Arrays.asList(12L, 13L), listQueryResult(cacheRegion, phoneValue));
+
+        session = sessionFactory.openSession();
+        tr = session.beginTransaction();
+        session.delete(session.get(SimpleEntity.class, 12L));
+        session.delete(session.get(SimpleEntity.class, 13L));
+        tr.commit();
+        session.close();
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+    }
+
+}
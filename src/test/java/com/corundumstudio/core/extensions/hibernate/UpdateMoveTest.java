@@ -0,0 +1,86 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class UpdateMoveTest extends BaseTest {
+
+    private static final String cacheRegion = "MoveSimpleEntitySQL";
+    private final String phoneValue = "5550606";
+    private final String otherPhoneValue = "5550707";
+
+    @BeforeClass
+    public static void before() {
+        initHibernate();
+        registerListener();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        clearQueryRegion(cacheRegion);
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        }, "phone");
+    }
+
+    @Test
+    public void testMoveOnParameterChange() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, otherPhoneValue));
+
+        SimpleEntity entity = createEntity(51L, phoneValue);
+        store(entity);
+        Assert.assertEquals(Arrays.asList(51L), listQueryResult(cacheRegion, phoneValue));
+
+        // query parameter isn't changed
+        statistics.clear();
+        update(51L, phoneValue, "Tver city");
+        Assert.assertEquals(1, statistics.getEventCount());
+        Assert.assertEquals(0, statistics.getUpdateCount());
+        Assert.assertEquals(Arrays.asList(51L), listQueryResult(cacheRegion, phoneValue));
+
+        update(51L, otherPhoneValue, "Tver city");
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, phoneValue));
+        Assert.assertEquals(Arrays.asList(51L), listQueryResult(cacheRegion, otherPhoneValue));
+
+        delete(51L);
+        Assert.assertEquals(Collections.emptyList(), listQueryResult(cacheRegion, otherPhoneValue));
+    }
+
+}
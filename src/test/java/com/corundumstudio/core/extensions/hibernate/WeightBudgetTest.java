@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 Nikita Koksharov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.corundumstudio.core.extensions.hibernate;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.corundumstudio.hibernate.dsc.CacheCallback;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCache;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheSettings;
+import com.corundumstudio.hibernate.dsc.DynamicQueryCacheStatistics;
+import com.corundumstudio.hibernate.dsc.InsertOrDeleteCommand;
+
+public class WeightBudgetTest extends BaseTest {
+
+    private static final String cacheRegion = "WeightSimpleEntitySQL";
+    private final String phoneA = "5551616";
+    private final String phoneB = "5551617";
+    private final String phoneC = "5551618";
+
+    @BeforeClass
+    public static void before() {
+        Properties settings = new Properties();
+        settings.setProperty(DynamicQueryCacheSettings.PREFIX + cacheRegion + "."
+                                + DynamicQueryCacheSettings.MAX_WEIGHT, "6");
+        initHibernate(settings);
+        registerListener();
+    }
+
+    private static void registerListener() {
+        queryCacheEntityListener.register(SimpleEntity.class, cacheRegion, new CacheCallback<SimpleEntity>() {
+            @Override
+            protected void onInsertOrDelete(InsertOrDeleteCommand command, SimpleEntity object) {
+                command.setParameter("phone", object.getPhone());
+                command.addResult(object.getId());
+            }
+        });
+    }
+
+    @Test
+    public void testEviction() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+
+        store(createEntity(161L, phoneA));
+        store(createEntity(162L, phoneA));
+        store(createEntity(163L, phoneA));
+        store(createEntity(164L, phoneB));
+        store(createEntity(165L, phoneC));
+
+        // weights 4 and 2 fit the budget
+        Assert.assertEquals(Arrays.asList(161L, 162L, 163L), listQueryResult(cacheRegion, phoneA));
+        Assert.assertEquals(Arrays.asList(164L), listQueryResult(cacheRegion, phoneB));
+        statistics.clear();
+        Assert.assertEquals(Arrays.asList(164L), listQueryResult(cacheRegion, phoneB));
+        Assert.assertEquals(0, statistics.getEvictionCount());
+
+        // least recently used result is evicted with its parameters entry
+        Assert.assertEquals(Arrays.asList(165L), listQueryResult(cacheRegion, phoneC));
+        Assert.assertEquals(1, statistics.getEvictionCount());
+        Assert.assertEquals(3, statistics.getEvictedRowCount());
+        Assert.assertEquals(4, queryCache.getRegion().toMap().size());
+
+        // grown result exceeds the budget, recently used result gets second chance
+        store(createEntity(166L, phoneB));
+        store(createEntity(167L, phoneB));
+        store(createEntity(168L, phoneB));
+        Assert.assertEquals(2, statistics.getEvictionCount());
+        Assert.assertEquals(4, statistics.getEvictedRowCount());
+        Assert.assertEquals(2, queryCache.getRegion().toMap().size());
+        Assert.assertEquals(Arrays.asList(164L, 166L, 167L, 168L), listQueryResult(cacheRegion, phoneB));
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        delete(161L);
+        delete(162L);
+        delete(163L);
+        delete(164L);
+        delete(165L);
+        delete(166L);
+        delete(167L);
+        delete(168L);
+    }
+
+    @Test
+    public void testClear() {
+        DynamicQueryCache queryCache = (DynamicQueryCache) sessionFactory.getQueryCache(cacheRegion);
+        DynamicQueryCacheStatistics statistics = queryCache.getStatistics();
+        sessionFactory.getCache().evictQueryRegions();
+        Assert.assertEquals(0, queryCache.getWeight());
+
+        store(createEntity(171L, phoneA));
+        store(createEntity(172L, phoneB));
+        store(createEntity(173L, phoneC));
+        Assert.assertEquals(Arrays.asList(171L), listQueryResult(cacheRegion, phoneA));
+        Assert.assertEquals(Arrays.asList(172L), listQueryResult(cacheRegion, phoneB));
+        Assert.assertEquals(4, queryCache.getWeight());
+
+        // weights of cleared results don't take the budget
+        sessionFactory.getCache().evictQueryRegions();
+        Assert.assertEquals(0, queryCache.getWeight());
+        statistics.clear();
+        Assert.assertEquals(Arrays.asList(171L), listQueryResult(cacheRegion, phoneA));
+        Assert.assertEquals(Arrays.asList(172L), listQueryResult(cacheRegion, phoneB));
+        Assert.assertEquals(Arrays.asList(173L), listQueryResult(cacheRegion, phoneC));
+        Assert.assertEquals(6, queryCache.getWeight());
+        Assert.assertEquals(0, statistics.getEvictionCount());
+
+        delete(171L);
+        delete(172L);
+        delete(173L);
+    }
+
+}